@@ -0,0 +1,11 @@
+// AnytimeBrain.java -- a Brain that can be stopped at a deadline
+
+public interface AnytimeBrain extends PreviewBrain {
+    /**
+     Like PreviewBrain.bestMove(), but the search stops once
+     System.nanoTime() passes the deadline and returns the best
+     move found so far. However early the deadline, a play is
+     returned if there is one, so the caller always gets a move.
+    */
+    public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move, long deadline);
+}
@@ -1,4 +1,5 @@
 import java.util.Arrays;
+import java.util.Locale;
 
 // Board.java
 
@@ -9,13 +10,63 @@ import java.util.Arrays;
  Has an "undo" feature that allows clients to add and remove pieces efficiently.
  Does not do any drawing or have any idea of pixels. Instead,
  just represents the abstract 2-d board.
+ 
+ <p>
+ The grid is stored as a bitboard: each row is a run of "words" longs,
+ bit (x % 64) of word (x / 64) is set when block (x, y) is filled.
+ For the standard 10-wide board that is a single long per row, so
+ testing, shifting and backing up rows are whole-word operations.
+ Only the rows up to the stack are stored: the arrays start small
+ and grow as pieces are placed higher, so a very tall board costs
+ memory and time in proportion to its occupied height, not its height.
 */
 public class Board	{
 	// Some ivars are stubbed out for you:
 	private int width;
 	private int height;
-	private boolean[][] grid;
-	private boolean DEBUG = true;
+	private int words;		// number of longs used to store one row
+	private long[] grid;	// row-major bitboard, row y starts at grid[y*words]
+	private int rows;		// rows stored in grid and widths, the ones above are all empty
+	
+	/**
+	 How much sanityCheck() checks after each change to a board:
+	 OFF checks nothing; SAMPLED does the full check every
+	 getSampleInterval() changes; CHECKSUM compares a word-at-a-time
+	 summary of the grid with the kept widths and heights on every
+	 change, and does the full check only if they differ; FULL does
+	 the full block by block check on every change.
+	 New boards take the mode named by the tetris.validation system
+	 property, CHECKSUM by default, and the interval from
+	 tetris.validation.interval.
+	*/
+	public enum Validation { OFF, SAMPLED, CHECKSUM, FULL }
+	
+	private static final Validation DEFAULT_VALIDATION = parseValidation(System.getProperty("tetris.validation"));
+	private static final int DEFAULT_SAMPLE_INTERVAL = Integer.getInteger("tetris.validation.interval", 1000);
+	
+	/*
+	 The validation mode named by the tetris.validation property, any
+	 case. A bad name must not make Board fail to load, so it gets the
+	 default, with a message.
+	 */
+	private static Validation parseValidation(String name) {
+		if (name == null) return Validation.CHECKSUM;
+		try {
+			return Validation.valueOf(name.trim().toUpperCase(Locale.ROOT));
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Unknown tetris.validation \"" + name + "\", using CHECKSUM; the modes are "
+					+ Arrays.toString(Validation.values()));
+			return Validation.CHECKSUM;
+		}
+	}
+	
+	private Validation validation = DEFAULT_VALIDATION;
+	private int sampleInterval = DEFAULT_SAMPLE_INTERVAL;
+	private int validationCount;	// changes since the last SAMPLED check
+	private long[] topsSeen;		// scratch for the CHECKSUM check, a bit per column
+	private int[] checkWidths;		// scratch for the full check, so checking allocates nothing
+	private int[] checkHeights;
 	boolean committed;
 	
 	private int[] widths;	// stores how many filled spots there are in each row
@@ -24,11 +75,47 @@ public class Board	{
 	private int maxHeight;	// stores the maximum column height, 
 							// updated when place() or clearRows() called
 	
-	// variables for backup (for undo())
-	private boolean[][] xGrid;
+	// board features for brains, kept up to date as heights change
+	private int[] colFilled;		// filled blocks in each column
+	private int filledCount;		// filled blocks in the whole board
+	private int aggregateHeight;	// sum of the column heights
+	private int bumpiness;			// sum of |height difference| of neighbor columns
+	private int wellSum;			// sum of the well depths, see getWellDepth()
+	
+	// undo journal -- place() records each block it sets along with the
+	// old height of its column, clearRows() records which rows it removed
+	private int[] jX;
+	private int[] jY;
+	private int[] jOldHeights;
+	private int jCount;			// number of blocks recorded by place()
+	private int xMaxHeight;		// maxHeight before place()
+	private int xFilledCount;		// the features before place()
+	private int xAggregateHeight;
+	private int xBumpiness;
+	private int xWellSum;
+	
+	private int[] jRows;		// rows removed by clearRows(), bottom to top
+	private int jRowCount;		// 0 if clearRows() removed nothing
+	private boolean jSnapshot;	// clearRows() took a full snapshot instead
+	private int jClearCount;	// rows removed by clearRows(), either way
+	private int xClearMaxHeight;	// maxHeight before clearRows()
+	private int lastCleared;		// rows removed by clearRows() since place()
+	private int lastEroded;			// blocks of the placed piece in those rows
+	
+	// clearRows() removing more than this many rows takes a full snapshot
+	// rather than journaling the rows -- beyond a piece's height the
+	// snapshot is no more expensive than re-inserting the rows on undo
+	private static final int JOURNAL_ROW_LIMIT = 4;
+	
+	// snapshot for the JOURNAL_ROW_LIMIT fallback, plus the heights
+	// before clearRows() which are needed either way
+	private long[] xGrid;
 	private int[] xWidths;
 	private int[] xHeights;
-	private int xMaxHeight;
+	private int[] clearedRows;	// scratch for clearRows(), the rows it removes
+	
+	// rows stored by a new board, the arrays double from there as needed
+	private static final int INITIAL_ROWS = 32;
 	
 	/**
 	 Creates an empty board of the given width and height
@@ -37,24 +124,131 @@ public class Board	{
 	public Board(int width, int height) {
 		this.width = width;
 		this.height = height;
-		grid = new boolean[width][height];
+		words = (width + 63) >>> 6;
+		rows = Math.min(height, INITIAL_ROWS);
+		grid = new long[rows * words];
 		committed = true;
 		
 		// widths and heights are updated when place() or clearRows called
-		widths = new int[height];
+		widths = new int[rows];
 		heights = new int[width];
 		Arrays.fill(widths, 0);
 		Arrays.fill(heights, 0);
 		
 		maxHeight = 0;
+		colFilled = new int[width];
 		
-		// initialization for backup variables
-		xGrid = new boolean[width][height];
-		xWidths = new int[height];
+		// initialization for the undo journal
+		jX = new int[8];
+		jY = new int[8];
+		jOldHeights = new int[8];
+		jRows = new int[JOURNAL_ROW_LIMIT];
+		xGrid = new long[0];		// allocated by the first big clearRows()
+		xWidths = new int[0];
 		xHeights = new int[width];
+		topsSeen = new long[words];
+		checkWidths = new int[0];		// grown to rows by the first full check
+		checkHeights = new int[width];
+		clearedRows = new int[JOURNAL_ROW_LIMIT];
 		xMaxHeight = 0;
 	}
 	
+	/**
+	 Creates a board holding the same blocks as the given board,
+	 in the committed state. Lets a search work on its own copy,
+	 e.g. on another thread, without touching the original.
+	*/
+	public Board(Board other) {
+		this(other.width, other.height);
+		copyFrom(other);
+		validation = other.validation;
+		sampleInterval = other.sampleInterval;
+	}
+	
+	
+	/**
+	 Creates a board holding the blocks of the given snapshot,
+	 in the committed state.
+	*/
+	public Board(BoardSnapshot snapshot) {
+		this(snapshot.getWidth(), snapshot.getHeight());
+		restore(snapshot);
+	}
+	
+	
+	/**
+	 Returns an immutable snapshot of the board's current contents.
+	 The snapshot shares nothing with the board, so the board may go on
+	 changing, and the snapshot may be branched with its own place()
+	 and clearRows() and passed to other threads.
+	*/
+	public BoardSnapshot snapshot() {
+		return new BoardSnapshot(width, height, grid, heights, colFilled, maxHeight, filledCount);
+	}
+	
+	
+	/**
+	 Makes this board hold the blocks of the given snapshot, which must
+	 have the same width and height, and puts it in the committed state.
+	*/
+	public void restore(BoardSnapshot snapshot) {
+		if (snapshot.getWidth() != width || snapshot.getHeight() != height) {
+			throw new IllegalArgumentException("restore size mismatch");
+		}
+		int used = Math.max(maxHeight, snapshot.getMaxHeight());
+		ensureRows(used);
+		for (int y = 0; y < used; y++) {
+			int count = 0;
+			for (int w = 0; w < words; w++) {
+				grid[y*words + w] = snapshot.getRowWord(y, w);
+				count += Long.bitCount(grid[y*words + w]);
+			}
+			widths[y] = count;
+		}
+		for (int x = 0; x < width; x++) {
+			heights[x] = snapshot.getColumnHeight(x);
+			colFilled[x] = snapshot.getColumnFilled(x);
+		}
+		maxHeight = snapshot.getMaxHeight();
+		filledCount = snapshot.getFilledCount();
+		computeFeatures();
+		resetJournal();
+		committed = true;
+		
+		sanityCheck();
+	}
+	
+	
+	/**
+	 Makes this board hold the same blocks as the given board, which must
+	 have the same width and height, and puts it in the committed state.
+	 Unlike the copy constructor this allocates nothing, so a search
+	 can keep one board per level and refill it for each node.
+	*/
+	public void copyFrom(Board other) {
+		if (other.width != width || other.height != height) {
+			throw new IllegalArgumentException("copyFrom size mismatch");
+		}
+		// rows at or above our old maxHeight are already empty,
+		// and other may not store the rows above its own maxHeight
+		ensureRows(other.maxHeight);
+		System.arraycopy(other.grid, 0, grid, 0, other.maxHeight * words);
+		System.arraycopy(other.widths, 0, widths, 0, other.maxHeight);
+		for (int j = other.maxHeight; j < maxHeight; j++) {
+			clearRow(j);
+			widths[j] = 0;
+		}
+		System.arraycopy(other.heights, 0, heights, 0, width);
+		maxHeight = other.maxHeight;
+		System.arraycopy(other.colFilled, 0, colFilled, 0, width);
+		filledCount = other.filledCount;
+		aggregateHeight = other.aggregateHeight;
+		bumpiness = other.bumpiness;
+		wellSum = other.wellSum;
+		resetJournal();
+		committed = true;
+	}
+	
 	
 	/**
 	 Returns the width of the board in blocks.
@@ -71,6 +265,11 @@ public class Board	{
 		return height;
 	}
 	
+	/**
+	 Returns the array of row widths. Only the rows that have been
+	 used are stored, so the array may be shorter than the board is
+	 high; the rows past its end are empty.
+	*/
 	public int[] getWidths() {
 		return widths;
 	}
@@ -89,57 +288,302 @@ public class Board	{
 	}
 	
 	
+	/*
+	 Board features.
+	 These are kept up to date by place(), clearRows() and undo(),
+	 so a brain can rate a board in O(1) instead of scanning the grid.
+	*/
+	
+	/**
+	 Returns the number of holes -- empty blocks that have a
+	 filled block somewhere above them in the same column.
+	*/
+	public int getHoles() {
+		return aggregateHeight - filledCount;
+	}
+	
+	/**
+	 Returns the number of holes in the given column.
+	*/
+	public int getColumnHoles(int x) {
+		return heights[x] - colFilled[x];
+	}
+	
+	/**
+	 Returns the number of filled blocks in the board.
+	*/
+	public int getFilledCount() {
+		return filledCount;
+	}
+	
+	/**
+	 Returns the sum of all the column heights.
+	*/
+	public int getAggregateHeight() {
+		return aggregateHeight;
+	}
+	
+	/**
+	 Returns the sum of the absolute height differences
+	 between each pair of neighboring columns.
+	*/
+	public int getBumpiness() {
+		return bumpiness;
+	}
+	
+	/**
+	 Returns the depth of the well at column x -- how far the column
+	 is below the lower of its two neighbors, or 0 if it is not below
+	 both. A column at the edge of the board is compared with its
+	 one neighbor only.
+	*/
+	public int getWellDepth(int x) {
+		int left = (x > 0) ? heights[x-1] : Integer.MAX_VALUE;
+		int right = (x < width-1) ? heights[x+1] : Integer.MAX_VALUE;
+		int side = Math.min(left, right);
+		if (side == Integer.MAX_VALUE) return 0;	// a board 1 wide has no wells
+		return Math.max(0, side - heights[x]);
+	}
+	
+	/**
+	 Returns the sum of getWellDepth() over all the columns.
+	*/
+	public int getWellSum() {
+		return wellSum;
+	}
+	
+	
+	/**
+	 Sets how much sanityCheck() checks, see Validation.
+	*/
+	public void setValidation(Validation validation) {
+		this.validation = validation;
+		validationCount = 0;
+	}
+	
+	public Validation getValidation() {
+		return validation;
+	}
+	
+	/**
+	 Sets how many changes go by between SAMPLED checks (at least 1).
+	*/
+	public void setSampleInterval(int sampleInterval) {
+		this.sampleInterval = Math.max(1, sampleInterval);
+	}
+	
+	public int getSampleInterval() {
+		return sampleInterval;
+	}
+	
+	
 	/**
 	 Checks the board for internal consistency -- used
-	 for debugging.
+	 for debugging. place(), clearRows() and undo() call this
+	 after every change; how much it checks depends on the
+	 board's Validation mode. Throws a RuntimeException describing
+	 the problem if the board is not consistent.
 	*/
 	public void sanityCheck() {
-		if (DEBUG) {
-			int[] checkWidths = new int[height];
-			int[] checkHeights = new int[width];
-			int checkMaxHeight = 0;
-			for (int i = 0; i < width; i++) {
-				for (int j = 0; j < height; j++) {
-					if (grid[i][j]) {
-						checkWidths[j]++;
-						checkHeights[i] = j+1;
-					}
-				}
-				checkMaxHeight = Math.max(checkMaxHeight, checkHeights[i]);
-			}
-			
-			StringBuilder desc = new StringBuilder();
-			desc.append("\nchecking heights:\n");
-			String prep;
-			boolean notSane = false;
-			for (int i = 0; i < width; i++) {
-				if (heights[i] == checkHeights[i]) prep = " and ";
-				else {
-					prep = " but ";
-					notSane = true;
+		validate(false);
+	}
+	
+	/*
+	 sanityCheck() for the changes: with local true, the change is
+	 just the blocks in the journal (a place(), or its undo()),
+	 and the CHECKSUM check only looks at their rows and columns.
+	 */
+	private void validate(boolean local) {
+		switch (validation) {
+			case OFF:
+				return;
+			case SAMPLED:
+				if (++validationCount < sampleInterval) return;
+				validationCount = 0;
+				break;
+			case CHECKSUM:
+				if (local ? quickCheckJournal() : quickCheck()) return;
+				break;		// something is off, find out what
+			case FULL:
+				break;
+		}
+		long start = TetrisMetrics.ENABLED ? System.nanoTime() : 0;
+		if (!fullCheck()) {
+			System.out.println(this);
+			throw new RuntimeException(sanityReport());
+		}
+		if (TetrisMetrics.ENABLED) TetrisMetrics.sanityCheck(System.nanoTime() - start);
+	}
+	
+	/*
+	 The CHECKSUM check: sums up the grid a row word at a time -- the
+	 row widths, where each column's top block is, the block count --
+	 and compares that with widths[], heights[], maxHeight and
+	 filledCount. Costs O(maxHeight) word operations, and catches
+	 the same bookkeeping errors as the full check for the blocks
+	 and heights; the other features follow from those.
+	 */
+	private boolean quickCheck() {
+		long start = TetrisMetrics.ENABLED ? System.nanoTime() : 0;
+		boolean sane = true;
+		int filled = 0;
+		int found = 0;		// columns whose top block has been seen
+		for (int j = maxHeight - 1; j >= 0 && sane; j--) {
+			int count = 0;
+			for (int w = 0; w < words; w++) {
+				long bits = grid[j*words + w];
+				count += Long.bitCount(bits);
+				long tops = bits & ~topsSeen[w];	// columns whose top block is in this row
+				topsSeen[w] |= tops;
+				while (tops != 0) {
+					int i = (w << 6) + Long.numberOfTrailingZeros(tops);
+					if (heights[i] != j+1) sane = false;
+					found++;
+					tops &= tops - 1;
 				}
-				desc.append("column " + i + " should be " + heights[i] + prep + "it is " + checkHeights[i] + "\n");
 			}
-			desc.append("checking widths:\n");
-			for (int j = 0; j < height; j++) {
-				if (widths[j] == checkWidths[j]) prep = " and ";
-				else {
-					prep = " but ";
-					notSane = true;
+			if (count != widths[j]) sane = false;
+			filled += count;
+		}
+		Arrays.fill(topsSeen, 0L);
+		
+		if (sane) {
+			// the columns with no blocks at all
+			int empty = 0;
+			for (int i = 0; i < width; i++) if (heights[i] == 0) empty++;
+			sane = (found + empty == width) && filled == filledCount
+					&& (maxHeight == 0 || getRowWidth(maxHeight-1) > 0)
+					&& (maxHeight >= rows || widths[maxHeight] == 0);
+		}
+		if (TetrisMetrics.ENABLED) TetrisMetrics.sanityCheck(System.nanoTime() - start);
+		return sane;
+	}
+	
+	/*
+	 The CHECKSUM check after a place() or its undo(): the rows and
+	 columns of the journal's blocks are the only ones that changed,
+	 so it checks the width of those rows, that the top block of
+	 those columns is where heights[] says, and maxHeight.
+	 */
+	private boolean quickCheckJournal() {
+		long start = TetrisMetrics.ENABLED ? System.nanoTime() : 0;
+		boolean sane = true;
+		for (int k = 0; k < jCount && sane; k++) {
+			int px = jX[k];
+			int py = jY[k];
+			int count = 0;
+			for (int w = 0; w < words; w++) count += Long.bitCount(grid[py*words + w]);
+			int h = heights[px];
+			sane = count == widths[py]
+					&& (h == 0 || isFilled(px, h-1))
+					&& (py < h || !isFilled(px, py));
+		}
+		int max = 0;
+		for (int i = 0; i < width; i++) max = Math.max(max, heights[i]);
+		sane = sane && max == maxHeight;
+		if (TetrisMetrics.ENABLED) TetrisMetrics.sanityCheck(System.nanoTime() - start);
+		return sane;
+	}
+	
+	/*
+	 The FULL check: rebuilds the widths, heights and features
+	 block by block and compares them with the ones kept up to date.
+	 */
+	private boolean fullCheck() {
+		int checkMaxHeight = computeCheck();
+		
+		for (int i = 0; i < width; i++) {
+			if (heights[i] != checkHeights[i]) return false;
+		}
+		for (int j = 0; j < rows; j++) {
+			if (widths[j] != checkWidths[j]) return false;
+		}
+		if (maxHeight != checkMaxHeight) return false;
+		
+		int checkFilled = 0, checkAggregate = 0, checkBumpiness = 0, checkWells = 0;
+		for (int i = 0; i < width; i++) {
+			if (colFilled[i] != columnCount(i, checkHeights[i])) return false;
+			checkFilled += colFilled[i];
+			checkAggregate += checkHeights[i];
+			if (i > 0) checkBumpiness += Math.abs(checkHeights[i] - checkHeights[i-1]);
+			checkWells += getWellDepth(i);
+		}
+		return filledCount == checkFilled && aggregateHeight == checkAggregate
+				&& bumpiness == checkBumpiness && wellSum == checkWells;
+	}
+	
+	/*
+	 Fills in checkWidths and checkHeights, counted block by block,
+	 and returns the max height.
+	 */
+	private int computeCheck() {
+		if (checkWidths.length < rows) checkWidths = new int[rows];
+		Arrays.fill(checkWidths, 0, rows, 0);
+		Arrays.fill(checkHeights, 0);
+		int checkMaxHeight = 0;
+		for (int i = 0; i < width; i++) {
+			for (int j = 0; j < rows; j++) {
+				if (isFilled(i, j)) {
+					checkWidths[j]++;
+					checkHeights[i] = j+1;
 				}
-				desc.append("row " + j + " should be " + widths[j] + prep + "it is " + checkWidths[j] + "\n");
 			}
-			desc.append("checking maxHeight:\n");
-			prep = (maxHeight == checkMaxHeight) ? " and " : " but ";
-			desc.append("maxHeight should be " + maxHeight + prep + "it is " + checkMaxHeight + "\n");
-			
-			if (notSane) {
-				System.out.println(this);
-				throw new RuntimeException(desc.toString());
+			checkMaxHeight = Math.max(checkMaxHeight, checkHeights[i]);
+		}
+		return checkMaxHeight;
+	}
+	
+	// the filled blocks of column i below height h
+	private int columnCount(int i, int h) {
+		int count = 0;
+		for (int j = 0; j < h; j++) {
+			if (isFilled(i, j)) count++;
+		}
+		return count;
+	}
+	
+	/*
+	 Describes every kept value next to the one counted from the
+	 blocks -- built only once a check has failed.
+	 */
+	private String sanityReport() {
+		int checkMaxHeight = computeCheck();
+		
+		StringBuilder desc = new StringBuilder();
+		desc.append("\nchecking heights:\n");
+		String prep;
+		for (int i = 0; i < width; i++) {
+			prep = (heights[i] == checkHeights[i]) ? " and " : " but ";
+			desc.append("column " + i + " should be " + heights[i] + prep + "it is " + checkHeights[i] + "\n");
+		}
+		desc.append("checking widths:\n");
+		for (int j = 0; j < rows; j++) {
+			prep = (widths[j] == checkWidths[j]) ? " and " : " but ";
+			desc.append("row " + j + " should be " + widths[j] + prep + "it is " + checkWidths[j] + "\n");
+		}
+		desc.append("checking maxHeight:\n");
+		prep = (maxHeight == checkMaxHeight) ? " and " : " but ";
+		desc.append("maxHeight should be " + maxHeight + prep + "it is " + checkMaxHeight + "\n");
+		
+		// the features, recomputed from the checked heights
+		int checkFilled = 0, checkAggregate = 0, checkBumpiness = 0, checkWells = 0;
+		for (int i = 0; i < width; i++) {
+			int colCount = columnCount(i, checkHeights[i]);
+			if (colFilled[i] != colCount) {
+				desc.append("column " + i + " filled should be " + colFilled[i] + " but it is " + colCount + "\n");
 			}
+			checkFilled += colCount;
+			checkAggregate += checkHeights[i];
+			if (i > 0) checkBumpiness += Math.abs(checkHeights[i] - checkHeights[i-1]);
+			checkWells += getWellDepth(i);
 		}
+		desc.append("checking features:\n");
+		desc.append("filled " + filledCount + "/" + checkFilled + ", aggregate height " + aggregateHeight + "/" + checkAggregate
+				+ ", bumpiness " + bumpiness + "/" + checkBumpiness + ", wells " + wellSum + "/" + checkWells + "\n");
+		return desc.toString();
 	}
 	
+	
 	/**
 	 Given a piece and an x, returns the y
 	 value where the piece would come to rest
@@ -148,15 +592,16 @@ public class Board	{
 	 <p>
 	 Implementation: use the skirt and the col heights
 	 to compute this fast -- O(skirt length) time complexity.
+	 The piece comes to rest on whichever column needs it
+	 highest, i.e. the max over i of heights[x+i] - skirt[i].
 	*/
 	public int dropHeight(Piece piece, int x) {
 		int[] skirt = piece.getSkirt();
-		int imax = x;	// assume piece and columns contact at col x
-		for (int i = 1; i < skirt.length;i ++) {
-			if (getColumnHeight(imax) - getColumnHeight(i)
-					< skirt[imax-x] - skirt[i]) imax = x + i;
+		int y = 0;
+		for (int i = 0; i < skirt.length; i++) {
+			y = Math.max(y, heights[x + i] - skirt[i]);
 		}
-		return heights[imax] + 1 - skirt[imax-x];
+		return y;
 	}
 	
 	
@@ -175,7 +620,50 @@ public class Board	{
 	 the given row.
 	*/
 	public int getRowWidth(int y) {
-		 return widths[y];
+		 return (y < rows) ? widths[y] : 0;
+	}
+	
+	
+	/**
+	 Returns a 64-bit hash of the blocks in the board. Boards with
+	 the same blocks have the same hash; different boards almost
+	 always differ. Costs O(max height) word operations.
+	*/
+	public long contentHash() {
+		long hash = width * 31L + maxHeight;
+		for (int i = 0; i < maxHeight * words; i++) {
+			hash = (hash ^ grid[i]) * 0x9E3779B97F4A7C15L;
+			hash ^= hash >>> 29;
+		}
+		return hash;
+	}
+	
+	
+	/**
+	 Returns the number of rows the last clearRows() removed, or 0 if
+	 there has been a place() or undo() since. Brains use this and
+	 getLastErodedCells() to rate a play, between place() and undo().
+	*/
+	public int getLastRowsCleared() {
+		return lastCleared;
+	}
+	
+	
+	/**
+	 Returns how many blocks of the last placed piece were in the
+	 rows the last clearRows() removed, or 0 as for getLastRowsCleared().
+	*/
+	public int getLastErodedCells() {
+		return lastEroded;
+	}
+	
+	
+	/*
+	 Returns word w of row y of the grid: bit x of the word is
+	 block (w*64 + x, y). For single-pass scans such as BoardFeatures.
+	 */
+	long getRowWord(int y, int w) {
+		return (y < rows) ? grid[y*words + w] : 0L;
 	}
 	
 	
@@ -186,7 +674,7 @@ public class Board	{
 	*/
 	public boolean getGrid(int x, int y) {
 		if (x < 0 || x >= width || y < 0 || y >= height) return true;
-		return grid[x][y];
+		return isFilled(x, y);
 	}
 	
 	
@@ -212,37 +700,71 @@ public class Board	{
 	public int place(Piece piece, int x, int y) {
 		// flag !committed problem
 		if (!committed) throw new RuntimeException("place commit problem");
+		if (TetrisMetrics.ENABLED) TetrisMetrics.place();
 		
-		backup();
+		resetJournal();
 		committed = false;
 			
 		int result = PLACE_OK;
-		
-		TPoint[] body = piece.getBody();
 		boolean flagClearRows = false;
-		int px, py;
-		for (TPoint p: body) {
-			px = x + p.x;
-			py = y + p.y;
-			
-			if (px < 0 || px >= width || py < 0 || py >= height) {
-				result = PLACE_OUT_BOUNDS;
-				continue;
-			} else if (grid[px][py]) {
-				if (result != PLACE_OUT_BOUNDS) result = PLACE_BAD;
-				continue;
+		
+		long[] rowMasks = piece.getRowMasks();
+		if (rowMasks != null && x >= 0 && y >= 0 && x + piece.getSkirt().length <= width
+				&& y + rowMasks.length <= height && fits(rowMasks, x, y)) {
+			ensureRows(y + rowMasks.length);
+			// fast path: whole rows of the piece at a time
+			int w = x >>> 6;
+			int shift = x & 63;
+			for (int r = 0; r < rowMasks.length; r++) {
+				if (rowMasks[r] == 0) continue;
+				int py = y + r;
+				long lo = rowMasks[r] << shift;
+				long hi = (shift == 0) ? 0 : rowMasks[r] >>> (64 - shift);
+				grid[py*words + w] |= lo;
+				if (hi != 0) grid[py*words + w + 1] |= hi;
+				recordRow(lo, w, py);
+				if (hi != 0) recordRow(hi, w + 1, py);
+				widths[py] += Long.bitCount(rowMasks[r]);
+				if (widths[py] == width) flagClearRows = true;
+			}
+			int[] tops = piece.getColumnTops();
+			for (int i = 0; i < tops.length; i++) {
+				int px = x + i;
+				if (tops[i] > 0 && y + tops[i] > heights[px]) setHeight(px, y + tops[i]);
+				maxHeight = Math.max(maxHeight, heights[px]);
+			}
+			filledCount += piece.getPackedBody().length;
+		}
+		else {
+			// slow path: block by block, noting blocks that are off the board or taken
+			int px, py;
+			for (int cell: piece.getPackedBody()) {
+				px = x + Piece.packedX(cell);
+				py = y + Piece.packedY(cell);
+				
+				if (px < 0 || px >= width || py < 0 || py >= height) {
+					result = PLACE_OUT_BOUNDS;
+					continue;
+				} else if (isFilled(px, py)) {
+					if (result != PLACE_OUT_BOUNDS) result = PLACE_BAD;
+					continue;
+				}
+				
+				ensureRows(py + 1);
+				record(px, py);
+				grid[py*words + (px >>> 6)] |= 1L << px;	// filled now
+				if (widths[py] == width-1) flagClearRows = true;
+				widths[py]++;
+				colFilled[px]++;
+				filledCount++;
+				if (py+1 > heights[px]) setHeight(px, py+1);
+				maxHeight = Math.max(maxHeight, heights[px]);
 			}
-			
-			grid[px][py] = true;	// filled now
-			if (widths[py] == width-1) flagClearRows = true;
-			widths[py]++;
-			heights[px] = Math.max(heights[px], py+1);
-			maxHeight = Math.max(maxHeight, heights[px]);
 		}
 		
 		if (flagClearRows && result == PLACE_OK) result = PLACE_ROW_FILLED;
 		
-		if (result <= PLACE_ROW_FILLED) sanityCheck();
+		if (result <= PLACE_ROW_FILLED) validate(true);
 		
 		return result;
 	}
@@ -256,43 +778,71 @@ public class Board	{
 		
 		if (committed) {
 			// just in case a client calls clearRows() without calling place() first
+			resetJournal();
 			committed = false;
 			return 0;	// since place() hasn't been called, there should be no rows clearable
 		}
+		
+		int fullRows = 0;
+		for (int j = 0; j < maxHeight; j++) {
+			if (widths[j] == width) fullRows++;
+		}
+		if (fullRows == 0) {
+			if (TetrisMetrics.ENABLED) TetrisMetrics.clearRows(0);
+			validate(true);		// nothing changed since place()
+			return 0;
+		}
+		
+		// journal the clear: the old heights, and either the
+		// removed row numbers or, for many rows, a full snapshot
+		xClearMaxHeight = maxHeight;
+		System.arraycopy(heights, 0, xHeights, 0, width);
+		jSnapshot = (fullRows > JOURNAL_ROW_LIMIT);
+		if (jSnapshot) {
+			if (xWidths.length < rows) {
+				xGrid = new long[rows * words];
+				xWidths = new int[rows];
+			}
+			System.arraycopy(grid, 0, xGrid, 0, maxHeight * words);
+			System.arraycopy(widths, 0, xWidths, 0, maxHeight);
+		}
+		jRowCount = 0;
 			
 		
+		// a full row is a single widths[] compare, and moving a row
+		// down is one arraycopy of its words
+		if (clearedRows.length < fullRows) clearedRows = new int[Math.max(fullRows, 2*clearedRows.length)];
 		int rowsCleared = 0;
-		for (int j = 0; j < height; j++) {
-			if (widths[j] == 0) break;	// all empty rows above from j
+		for (int j = 0; j < maxHeight; j++) {
 			if (widths[j] == width) {	// is full row, cleared
+				clearedRows[rowsCleared] = j;
 				rowsCleared++;
-				widths[j] = 0;	// defensive, in case rows above j are all empty
-				
-				clearRow(j);
-				maxHeight--;
+				if (!jSnapshot) jRows[jRowCount++] = j;
+				for (int i = 0; i < jCount; i++) {
+					if (jY[i] == j) lastEroded++;
+				}
 			}
 			else if (rowsCleared > 0) {	// shift down
 				copyRow(j-rowsCleared, j);
-				clearRow(j);
 				widths[j-rowsCleared] = widths[j];
-				widths[j] = 0;
 			}
 		}
 		
-		for (int i = 0; i < width; i++) {
-			// heights[i]--; // wrong -> e.g. hole in between cleared row and rows below
-			// find the first true grid from the top
-			heights[i] = 0; // in case below for loop is not reached for any j
-			for (int j = height-1; j >= 0; j--) {
-				if (grid[i][j]) {
-					heights[i] = j + 1;
-					break;
-				}
-			}
-			
-			
+		// the top rowsCleared rows of the old stack are now empty
+		for (int j = maxHeight - rowsCleared; j < maxHeight; j++) {
+			clearRow(j);
+			widths[j] = 0;
 		}
+		jClearCount = rowsCleared;
+		lastCleared = rowsCleared;
+		updateHeights(rowsCleared);
+		
+		// every column lost one block per cleared row
+		for (int i = 0; i < width; i++) colFilled[i] -= rowsCleared;
+		filledCount -= rowsCleared * width;
+		computeFeatures();
 		
+		if (TetrisMetrics.ENABLED) TetrisMetrics.clearRows(rowsCleared);
 		sanityCheck();
 		
 		return rowsCleared;
@@ -304,14 +854,16 @@ public class Board	{
 	 Reverts the board to its state before up to one place()
 	 and one clearRows();
 	 
-	 Strategy: arraycopy() for backup, and swap main and copy for undo()
-	 Implementations: 
-	 (1) do backup first in place() and clearRows(), note, we should only 
-	 	 perform backup if committed == true, otherwise it is meaningless to
-	 	 backup for an "unsaved" state 
-	 	 e.g. backup -> place() (-> NO NEED TO BACKUP HERE) -> clearRows() -> undo()
-	 	 actually only place() needs to call backup(), clearRows doesn't need to
-	 (2) swap the main and copy in an undo() call
+	 Strategy: a delta journal rather than a copy of the whole board.
+	 (1) place() records each block it sets plus the old height
+	 	 of that block's column, so undoing it costs O(piece size)
+	 (2) clearRows() records the row numbers it removed and the old
+	 	 heights; undo() shifts the rows above back up and refills
+	 	 the removed rows (they were full, so their contents are known).
+	 	 When more than JOURNAL_ROW_LIMIT rows go at once, clearRows()
+	 	 snapshots the occupied rows instead and undo() copies them back.
+	 (3) undo() replays the journal backwards: the clear first,
+	 	 then the blocks from place()
 	 
 	 If the conditions for undo() are not met, such as
 	 calling undo() twice in a row, then the second undo() does nothing.
@@ -319,35 +871,163 @@ public class Board	{
 	*/
 	public void undo() {
 		if (committed) return;
+		if (TetrisMetrics.ENABLED) TetrisMetrics.undo();
 		
-		boolean[][] tmpGrid = grid;
-		int[] tmpWidths = widths;
-		int[] tmpHeights = heights;
-		int tmpMaxHeight = maxHeight;
+		if (jSnapshot) {
+			System.arraycopy(xGrid, 0, grid, 0, xClearMaxHeight * words);
+			System.arraycopy(xWidths, 0, widths, 0, xClearMaxHeight);
+			System.arraycopy(xHeights, 0, heights, 0, width);
+			maxHeight = xClearMaxHeight;
+			for (int i = 0; i < width; i++) colFilled[i] += jClearCount;
+		}
+		else if (jRowCount > 0) {
+			// walk down from the old top: removed rows are refilled,
+			// every other row comes back from below its old position
+			int k = jRowCount - 1;
+			for (int j = xClearMaxHeight - 1; j >= 0; j--) {
+				if (k >= 0 && jRows[k] == j) {
+					fillRow(j);
+					widths[j] = width;
+					k--;
+				}
+				else {
+					copyRow(j, j - (k+1));
+					widths[j] = widths[j - (k+1)];
+				}
+				if (k < 0) break;	// rows below the lowest removed row never moved
+			}
+			System.arraycopy(xHeights, 0, heights, 0, width);
+			maxHeight = xClearMaxHeight;
+			for (int i = 0; i < width; i++) colFilled[i] += jRowCount;
+		}
 		
-		grid = xGrid;
-		widths = xWidths;
-		heights = xHeights;
+		// take back the blocks set by place(), newest first
+		for (int i = jCount - 1; i >= 0; i--) {
+			int px = jX[i];
+			int py = jY[i];
+			grid[py*words + (px >>> 6)] &= ~(1L << px);
+			widths[py]--;
+			colFilled[px]--;
+			heights[px] = jOldHeights[i];
+		}
 		maxHeight = xMaxHeight;
-		
-		xGrid = tmpGrid;
-		xWidths = tmpWidths;
-		xHeights = tmpHeights;
-		xMaxHeight = tmpMaxHeight;
-
-		sanityCheck();
+		filledCount = xFilledCount;
+		aggregateHeight = xAggregateHeight;
+		bumpiness = xBumpiness;
+		wellSum = xWellSum;
+		validate(jClearCount == 0);
+		resetJournal();
 
 		commit();
 	}
 	
-	private void backup() {
-		if (!committed) return;
-		for (int i = 0; i < grid.length; i++) {
-			System.arraycopy(grid[i], 0, xGrid[i], 0, grid[0].length);
+	/**
+	 Returns true if the piece could be placed at x,y: it is inside
+	 the board and covers no filled block. Changes nothing, so it may
+	 be called in any state -- MoveGenerator uses it to search where
+	 a falling piece can go.
+	*/
+	public boolean canPlace(Piece piece, int x, int y) {
+		if (x < 0 || y < 0 || x + piece.getWidth() > width || y + piece.getHeight() > height) return false;
+		long[] rowMasks = piece.getRowMasks();
+		if (rowMasks != null) return fits(rowMasks, x, y);
+		
+		for (int cell: piece.getPackedBody()) {
+			if (isFilled(x + Piece.packedX(cell), y + Piece.packedY(cell))) return false;
 		}
-		System.arraycopy(widths, 0, xWidths, 0, widths.length);
-		System.arraycopy(heights, 0, xHeights, 0, heights.length);
+		return true;
+	}
+	
+	/**
+	 * helper for place(), true if the piece's row masks shifted
+	 * to (x, y) hit no filled block; the piece must be in bounds
+	 */
+	private boolean fits(long[] rowMasks, int x, int y) {
+		int w = x >>> 6;
+		int shift = x & 63;
+		for (int r = 0; r < rowMasks.length && y + r < rows; r++) {
+			if (rowMasks[r] == 0) continue;
+			int i = (y + r)*words + w;
+			if ((grid[i] & (rowMasks[r] << shift)) != 0) return false;
+			if (shift != 0 && (rowMasks[r] >>> (64 - shift)) != 0
+					&& (grid[i + 1] & (rowMasks[r] >>> (64 - shift))) != 0) return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * helper for place(), records and counts each block of word w
+	 * of row py just set by the fast path; heights are still the old ones
+	 */
+	private void recordRow(long bits, int w, int py) {
+		while (bits != 0) {
+			int px = (w << 6) + Long.numberOfTrailingZeros(bits);
+			record(px, py);
+			colFilled[px]++;
+			bits &= bits - 1;
+		}
+	}
+	
+	/**
+	 * helper for place(), notes that block (px, py) is about to be set
+	 */
+	private void record(int px, int py) {
+		if (jCount == jX.length) {
+			jX = Arrays.copyOf(jX, jCount * 2);
+			jY = Arrays.copyOf(jY, jCount * 2);
+			jOldHeights = Arrays.copyOf(jOldHeights, jCount * 2);
+		}
+		jX[jCount] = px;
+		jY[jCount] = py;
+		jOldHeights[jCount] = heights[px];
+		jCount++;
+	}
+	
+	/**
+	 * helper, empties the undo journal and remembers the
+	 * current state as the one undo() returns to
+	 */
+	private void resetJournal() {
+		jCount = 0;
+		jRowCount = 0;
+		jSnapshot = false;
+		lastCleared = 0;
+		lastEroded = 0;
 		xMaxHeight = maxHeight;
+		xFilledCount = filledCount;
+		xAggregateHeight = aggregateHeight;
+		xBumpiness = bumpiness;
+		xWellSum = wellSum;
+	}
+	
+	/**
+	 * helper for place(), sets the height of column x and updates the
+	 * height features -- only columns x-1, x and x+1 are affected
+	 */
+	private void setHeight(int x, int h) {
+		int old = heights[x];
+		int from = Math.max(0, x-1), to = Math.min(width-1, x+1);
+		for (int i = from; i <= to; i++) wellSum -= getWellDepth(i);
+		if (x > 0) bumpiness += Math.abs(h - heights[x-1]) - Math.abs(old - heights[x-1]);
+		if (x < width-1) bumpiness += Math.abs(h - heights[x+1]) - Math.abs(old - heights[x+1]);
+		heights[x] = h;
+		aggregateHeight += h - old;
+		for (int i = from; i <= to; i++) wellSum += getWellDepth(i);
+	}
+	
+	/**
+	 * helper for clearRows(), recomputes the height features from
+	 * scratch after heights[] has been rebuilt
+	 */
+	private void computeFeatures() {
+		aggregateHeight = 0;
+		bumpiness = 0;
+		wellSum = 0;
+		for (int i = 0; i < width; i++) {
+			aggregateHeight += heights[i];
+			if (i > 0) bumpiness += Math.abs(heights[i] - heights[i-1]);
+			wellSum += getWellDepth(i);
+		}
 	}
 	
 	
@@ -380,12 +1060,28 @@ public class Board	{
 		return(buff.toString());
 	}
 	
+	/**
+	 * helper, true if block (x, y) is set in the bitboard,
+	 * no bounds checking
+	 */
+	private boolean isFilled(int x, int y) {
+		return y < rows && (grid[y*words + (x >>> 6)] & (1L << x)) != 0;
+	}
+	
 	/**
 	 * helper method for clearRows(), fill row j with all false
 	 * @param j: row j to be cleared
 	 */
 	private void clearRow(int j) {
-		for (int i = 0; i < width; i++) grid[i][j] = false;
+		Arrays.fill(grid, j*words, (j+1)*words, 0L);
+	}
+	
+	/**
+	 * helper method for undo(), fill row j with all true
+	 * @param j: row j to be filled
+	 */
+	private void fillRow(int j) {
+		for (int w = 0; w < words; w++) grid[j*words + w] = wordMask(w);
 	}
 	
 	/**
@@ -394,10 +1090,54 @@ public class Board	{
 	 * @param j2: row to be copied from (higher row in board)
 	 */
 	private void copyRow(int j1, int j2) {
+		System.arraycopy(grid, j2*words, grid, j1*words, words);
+	}
+	
+	/**
+	 * helper method for clearRows(), brings heights[] up to date after
+	 * the given number of clearedRows were removed (heights still holds
+	 * the old ones): a column whose top block stayed just drops by the
+	 * rows cleared below it, and only a column whose top block was in a
+	 * cleared row is scanned down for its new top; then sets maxHeight
+	 * to the tallest column
+	 */
+	private void updateHeights(int count) {
+		maxHeight = 0;
 		for (int i = 0; i < width; i++) {
-			grid[i][j1] = grid[i][j2];
+			int h = heights[i];
+			int below = 0;			// cleared rows under the old top
+			boolean topCleared = false;
+			for (int k = 0; k < count && clearedRows[k] < h; k++) {
+				below++;
+				if (clearedRows[k] == h-1) topCleared = true;
+			}
+			h -= below;
+			if (topCleared) {
+				while (h > 0 && !isFilled(i, h-1)) h--;
+			}
+			heights[i] = h;
+			maxHeight = Math.max(maxHeight, h);
 		}
 	}
+	
+	/**
+	 * helper, makes sure rows 0..needed-1 are stored, growing
+	 * grid and widths (by doubling, up to the board height)
+	 */
+	private void ensureRows(int needed) {
+		if (needed <= rows) return;
+		rows = Math.min(height, Math.max(needed, rows * 2));
+		grid = Arrays.copyOf(grid, rows * words);
+		widths = Arrays.copyOf(widths, rows);
+	}
+	
+	/**
+	 * helper, the mask of bits of word w that lie inside the board width
+	 */
+	private long wordMask(int w) {
+		int bits = width - (w << 6);
+		return (bits >= 64) ? -1L : (1L << bits) - 1;
+	}
 }
 
 
@@ -0,0 +1,187 @@
+// BoardFeatures.java
+
+import java.util.Arrays;
+
+/**
+ Computes a vector of features of a board, for brains to rate plays with.
+ The features that look at the blocks themselves -- holes, wells and
+ transitions -- all come out of one pass down the board's rows, a word
+ of 64 blocks at a time, instead of a getGrid() call per block. The
+ features based on heights come straight from the Board, and the
+ ones about the play itself from the piece and Board.getLastRowsCleared().
+
+ An evaluator only computes the features in its mask, e.g.
+ <pre>
+ BoardFeatures features = new BoardFeatures(BoardFeatures.mask(BoardFeatures.HOLES, BoardFeatures.WELLS));
+ double[] values = new double[BoardFeatures.COUNT];
+ features.evaluate(board, piece, x, y, values);	// values[HOLES], values[WELLS]
+ </pre>
+ An evaluator keeps scratch arrays, so use one per thread.
+*/
+public class BoardFeatures {
+	// The features, indexes into the values array
+	public static final int MAX_HEIGHT = 0;			// height of the tallest column
+	public static final int AVG_HEIGHT = 1;			// average column height
+	public static final int HOLES = 2;				// empty blocks with a filled block above
+	public static final int ROWS_WITH_HOLES = 3;	// rows holding at least one hole
+	public static final int BUMPINESS = 4;			// sum of |height difference| of neighbor columns
+	public static final int WELLS = 5;				// open cells with both sides filled, 1+2+..+depth per well
+	public static final int ROW_TRANSITIONS = 6;	// filled/empty changes along the rows, walls count as filled
+	public static final int COLUMN_TRANSITIONS = 7;	// filled/empty changes up the columns, the floor counts as filled
+	public static final int LANDING_HEIGHT = 8;		// height of the middle of the placed piece
+	public static final int ROWS_CLEARED = 9;		// rows the play cleared
+	public static final int ERODED_CELLS = 10;		// rows cleared * blocks of the piece in them
+	public static final int COUNT = 11;
+
+	public static final String[] NAMES = {
+		"maxHeight", "avgHeight", "holes", "rowsWithHoles", "bumpiness", "wells",
+		"rowTransitions", "columnTransitions", "landingHeight", "rowsCleared", "erodedCells"
+	};
+
+	public static final int ALL = (1 << COUNT) - 1;
+
+	// the features that need the pass over the rows
+	private static final int SCAN = mask(HOLES, ROWS_WITH_HOLES, WELLS, ROW_TRANSITIONS, COLUMN_TRANSITIONS);
+
+	private final int mask;
+
+	// scratch for the scan, sized for the last board seen
+	private long[] row = new long[0];
+	private long[] above = new long[0];
+	private long[] covered = new long[0];
+	private long[] prevWells = new long[0];
+	private int[] wellDepth = new int[0];
+
+	/**
+	 Creates an evaluator for the features in the mask, see mask().
+	*/
+	public BoardFeatures(int mask) {
+		this.mask = mask & ALL;
+	}
+
+	/**
+	 Returns the mask with the given features' bits set.
+	*/
+	public static int mask(int... features) {
+		int mask = 0;
+		for (int f: features) mask |= 1 << f;
+		return mask;
+	}
+
+	public int getMask() {
+		return mask;
+	}
+
+	/**
+	 Fills in values[f] for each feature f in the mask; the other values
+	 are set to 0. The piece, x and y describe the play that led to the
+	 board, after any clearRows(); piece may be null to rate just the board,
+	 and then the play features are 0.
+	*/
+	public void evaluate(Board board, Piece piece, int x, int y, double[] values) {
+		Arrays.fill(values, 0, COUNT, 0.0);
+		int width = board.getWidth();
+
+		if (has(MAX_HEIGHT)) values[MAX_HEIGHT] = board.getMaxHeight();
+		if (has(AVG_HEIGHT)) values[AVG_HEIGHT] = ((double)board.getAggregateHeight())/width;
+		if (has(BUMPINESS)) values[BUMPINESS] = board.getBumpiness();
+		if (piece != null) {
+			if (has(LANDING_HEIGHT)) values[LANDING_HEIGHT] = y + (piece.getHeight() - 1) / 2.0;
+			if (has(ROWS_CLEARED)) values[ROWS_CLEARED] = board.getLastRowsCleared();
+			if (has(ERODED_CELLS)) values[ERODED_CELLS] = board.getLastRowsCleared() * board.getLastErodedCells();
+		}
+
+		if ((mask & SCAN) != 0) scan(board, values);
+	}
+
+	private boolean has(int feature) {
+		return (mask & (1 << feature)) != 0;
+	}
+
+	/*
+	 The single pass: walks down from the top of the stack, keeping
+	 the blocks seen so far ("covered") and the row above.
+	 */
+	private void scan(Board board, double[] values) {
+		int width = board.getWidth();
+		int words = (width + 63) >>> 6;
+		int top = board.getMaxHeight();
+		if (row.length != words) {
+			row = new long[words];
+			above = new long[words];
+			covered = new long[words];
+			prevWells = new long[words];
+		}
+		if (wellDepth.length != width) wellDepth = new int[width];
+		Arrays.fill(covered, 0L);
+		Arrays.fill(prevWells, 0L);
+
+		int lastWord = words - 1;
+		long lastBit = 1L << ((width - 1) & 63);	// the right wall is just past this block
+		boolean wantWells = has(WELLS);
+		boolean wantRows = has(ROW_TRANSITIONS);
+		boolean wantColumns = has(COLUMN_TRANSITIONS);
+
+		int holes = 0, rowsWithHoles = 0, wells = 0, rowTransitions = 0, columnTransitions = 0;
+		for (int y = top - 1; y >= 0; y--) {
+			for (int w = 0; w < words; w++) row[w] = board.getRowWord(y, w);
+
+			boolean rowHasHole = false;
+			for (int w = 0; w < words; w++) {
+				long all = (w < lastWord) ? -1L : lastBit | (lastBit - 1);
+				long bits = row[w];
+
+				// block x-1 filled, or the left wall
+				long left = (bits << 1) | ((w == 0) ? 1L : row[w-1] >>> 63);
+
+				long holeBits = covered[w] & ~bits & all;
+				if (holeBits != 0) {
+					holes += Long.bitCount(holeBits);
+					rowHasHole = true;
+				}
+
+				if (wantRows) {
+					rowTransitions += Long.bitCount((bits ^ left) & all);
+					if (w == lastWord && (bits & lastBit) == 0) rowTransitions++;	// the right wall
+				}
+
+				if (wantColumns && y < top - 1) {
+					columnTransitions += Long.bitCount((bits ^ above[w]) & all);
+				}
+
+				if (wantWells) {
+					// block x+1 filled, or the right wall
+					long right = (bits >>> 1) | ((w < lastWord) ? row[w+1] << 63 : lastBit);
+					long wellBits = ~bits & ~covered[w] & left & right & all;
+					long continued = prevWells[w];
+					prevWells[w] = wellBits;
+					while (wellBits != 0) {
+						int b = Long.numberOfTrailingZeros(wellBits);
+						int col = (w << 6) + b;
+						wellDepth[col] = ((continued >>> b) & 1) != 0 ? wellDepth[col] + 1 : 1;
+						wells += wellDepth[col];
+						wellBits &= wellBits - 1;
+					}
+				}
+
+				covered[w] |= bits;
+				above[w] = bits;
+			}
+			if (rowHasHole) rowsWithHoles++;
+		}
+
+		if (wantColumns && top > 0) {
+			// the bottom row against the floor
+			for (int w = 0; w < words; w++) {
+				long all = (w < lastWord) ? -1L : lastBit | (lastBit - 1);
+				columnTransitions += Long.bitCount(~above[w] & all);
+			}
+		}
+
+		values[HOLES] = has(HOLES) ? holes : 0;
+		values[ROWS_WITH_HOLES] = has(ROWS_WITH_HOLES) ? rowsWithHoles : 0;
+		values[WELLS] = wells;
+		values[ROW_TRANSITIONS] = rowTransitions;
+		values[COLUMN_TRANSITIONS] = columnTransitions;
+	}
+}
@@ -0,0 +1,307 @@
+// BoardSnapshot.java
+
+import java.util.Arrays;
+
+/**
+ An immutable copy of a Board's contents. place() and clearRows()
+ do not change a snapshot but return a new one, which shares every
+ chunk of rows it did not touch with the old one -- like a persistent
+ vector of rows. Branching a snapshot costs a few small arrays
+ rather than a copy of the whole grid, and since nothing ever
+ changes, snapshots can be handed to other threads freely.
+
+ The rows are a shallow tree: a top array of blocks, each block an
+ array of BLOCK_CHUNKS chunks of CHUNK_ROWS rows. The column heights
+ and counts are split the same way into chunks of COLUMN_CHUNK
+ columns. So place() copies the top arrays (height/256 and width/64
+ entries), the blocks and chunks it writes to, and nothing else --
+ a few hundred words even on a 1000x100000 board. clearRows()
+ rebuilds everything from the lowest full row up.
+
+ Typical client code looks like...
+ <pre>
+ BoardSnapshot root = board.snapshot();
+ BoardSnapshot next = root.place(piece, x, root.dropHeight(piece, x));
+ if (next != null) next = next.clearRows();	// root is unchanged
+ board.restore(next);					// back into a Board, e.g. to undo() from there
+ </pre>
+*/
+public final class BoardSnapshot {
+	// rows are stored in chunks of this many, a chunk is copied when one of its rows changes
+	private static final int CHUNK_ROWS = 8;
+	// chunks per block of the tree, a block is copied when one of its chunks changes
+	private static final int BLOCK_CHUNKS = 32;
+	private static final int BLOCK_ROWS = CHUNK_ROWS * BLOCK_CHUNKS;
+	// columns per chunk of the heights and colFilled
+	private static final int COLUMN_CHUNK = 64;
+
+	private final int width;
+	private final int height;
+	private final int words;			// longs per row, as in Board
+	private final long[][][] blocks;	// block b, chunk k holds rows (b*BLOCK_CHUNKS + k)*CHUNK_ROWS.., null if all empty
+	private final int[][] heights;		// column x at [x / COLUMN_CHUNK][x % COLUMN_CHUNK]
+	private final int[][] colFilled;	// likewise
+	private final int maxHeight;
+	private final int filledCount;
+	private final int aggregateHeight;
+
+	/*
+	 Takes the rows below maxHeight from a Board's grid.
+	 The heights and colFilled arrays are copied.
+	 */
+	BoardSnapshot(int width, int height, long[] grid, int[] heights, int[] colFilled, int maxHeight, int filledCount) {
+		this.width = width;
+		this.height = height;
+		words = (width + 63) >>> 6;
+		blocks = new long[(height + BLOCK_ROWS - 1) / BLOCK_ROWS][][];
+		for (int c = 0; c*CHUNK_ROWS < maxHeight; c++) {
+			long[] chunk = new long[CHUNK_ROWS * words];
+			int rows = Math.min(CHUNK_ROWS, maxHeight - c*CHUNK_ROWS);
+			System.arraycopy(grid, c*CHUNK_ROWS*words, chunk, 0, rows * words);
+			int b = c / BLOCK_CHUNKS;
+			if (blocks[b] == null) blocks[b] = new long[BLOCK_CHUNKS][];
+			blocks[b][c % BLOCK_CHUNKS] = chunk;
+		}
+		this.heights = split(heights, width);
+		this.colFilled = split(colFilled, width);
+		this.maxHeight = maxHeight;
+		this.filledCount = filledCount;
+		int total = 0;
+		for (int i = 0; i < width; i++) total += heights[i];
+		this.aggregateHeight = total;
+	}
+
+	/*
+	 Wraps arrays made by place() or clearRows(), without copying them.
+	 */
+	private BoardSnapshot(BoardSnapshot old, long[][][] blocks, int[][] heights, int[][] colFilled,
+			int maxHeight, int filledCount, int aggregateHeight) {
+		width = old.width;
+		height = old.height;
+		words = old.words;
+		this.blocks = blocks;
+		this.heights = heights;
+		this.colFilled = colFilled;
+		this.maxHeight = maxHeight;
+		this.filledCount = filledCount;
+		this.aggregateHeight = aggregateHeight;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getMaxHeight() {
+		return maxHeight;
+	}
+
+	public int getColumnHeight(int x) {
+		return heights[x / COLUMN_CHUNK][x % COLUMN_CHUNK];
+	}
+
+	public int getFilledCount() {
+		return filledCount;
+	}
+
+	public int getAggregateHeight() {
+		return aggregateHeight;
+	}
+
+	/**
+	 Returns the number of empty blocks that have a filled block
+	 somewhere above them in the same column, as Board.getHoles().
+	*/
+	public int getHoles() {
+		return aggregateHeight - filledCount;
+	}
+
+	/**
+	 Returns the number of filled blocks in the given row.
+	*/
+	public int getRowWidth(int y) {
+		int count = 0;
+		for (int w = 0; w < words; w++) count += Long.bitCount(getRowWord(y, w));
+		return count;
+	}
+
+	/**
+	 Returns true if the given block is filled; blocks
+	 outside the board count as filled, as in Board.getGrid().
+	*/
+	public boolean getGrid(int x, int y) {
+		if (x < 0 || x >= width || y < 0 || y >= height) return true;
+		return (getRowWord(y, x >>> 6) & (1L << x)) != 0;
+	}
+
+	/**
+	 Returns the y where the piece would come to rest if dropped
+	 straight down at x, as Board.dropHeight().
+	*/
+	public int dropHeight(Piece piece, int x) {
+		int[] skirt = piece.getSkirt();
+		int y = 0;
+		for (int i = 0; i < skirt.length; i++) {
+			y = Math.max(y, getColumnHeight(x + i) - skirt[i]);
+		}
+		return y;
+	}
+
+	/**
+	 Returns a snapshot with the piece added at x, y, or null if the
+	 piece would stick out of the board or overlap a filled block.
+	 Full rows are left in place; see clearRows().
+	*/
+	public BoardSnapshot place(Piece piece, int x, int y) {
+		int[] body = piece.getPackedBody();
+		for (int cell: body) {
+			if (getGrid(x + Piece.packedX(cell), y + Piece.packedY(cell))) return null;
+		}
+
+		// copy on write, comparing with the old arrays to see what is still shared
+		long[][][] newBlocks = blocks.clone();
+		int[][] newHeights = heights.clone();
+		int[][] newColFilled = colFilled.clone();
+		int newMaxHeight = maxHeight;
+		int newAggregate = aggregateHeight;
+		for (int cell: body) {
+			int px = x + Piece.packedX(cell);
+			int py = y + Piece.packedY(cell);
+			int b = py / BLOCK_ROWS;
+			int k = (py / CHUNK_ROWS) % BLOCK_CHUNKS;
+			if (newBlocks[b] == blocks[b]) {
+				newBlocks[b] = (blocks[b] == null) ? new long[BLOCK_CHUNKS][] : blocks[b].clone();
+			}
+			long[] oldChunk = (blocks[b] == null) ? null : blocks[b][k];
+			if (newBlocks[b][k] == oldChunk) {
+				newBlocks[b][k] = (oldChunk == null) ? new long[CHUNK_ROWS * words] : oldChunk.clone();
+			}
+			newBlocks[b][k][(py % CHUNK_ROWS)*words + (px >>> 6)] |= 1L << px;
+
+			int c = px / COLUMN_CHUNK;
+			if (newHeights[c] == heights[c]) {
+				newHeights[c] = heights[c].clone();
+				newColFilled[c] = colFilled[c].clone();
+			}
+			newColFilled[c][px % COLUMN_CHUNK]++;
+			int old = newHeights[c][px % COLUMN_CHUNK];
+			if (py + 1 > old) {
+				newHeights[c][px % COLUMN_CHUNK] = py + 1;
+				newAggregate += py + 1 - old;
+			}
+			newMaxHeight = Math.max(newMaxHeight, py + 1);
+		}
+		return new BoardSnapshot(this, newBlocks, newHeights, newColFilled, newMaxHeight,
+				filledCount + body.length, newAggregate);
+	}
+
+	/**
+	 Returns a snapshot with the full rows removed and the rows above
+	 them shifted down, or this snapshot if no row is full.
+	 Blocks and chunks below the lowest full row are shared.
+	*/
+	public BoardSnapshot clearRows() {
+		int first = 0;
+		while (first < maxHeight && getRowWidth(first) < width) first++;
+		if (first == maxHeight) return this;
+
+		// drop every row from first up, keeping the rows below it
+		long[][][] newBlocks = blocks.clone();
+		int b0 = first / BLOCK_ROWS;
+		int k0 = (first / CHUNK_ROWS) % BLOCK_CHUNKS;
+		for (int b = b0 + 1; b < newBlocks.length; b++) newBlocks[b] = null;
+		if (blocks[b0] != null) {
+			long[][] block = blocks[b0].clone();
+			for (int k = k0 + 1; k < BLOCK_CHUNKS; k++) block[k] = null;
+			if (first % CHUNK_ROWS != 0) {
+				block[k0] = block[k0].clone();
+				Arrays.fill(block[k0], (first % CHUNK_ROWS)*words, CHUNK_ROWS*words, 0L);
+			}
+			else {
+				block[k0] = null;
+			}
+			newBlocks[b0] = block;
+		}
+
+		// copy the rows that stay down over the ones that go; all
+		// that is written to is new, so it can be written in place
+		int to = first;
+		for (int from = first; from < maxHeight; from++) {
+			if (getRowWidth(from) == width) continue;
+			int b = to / BLOCK_ROWS;
+			int k = (to / CHUNK_ROWS) % BLOCK_CHUNKS;
+			if (newBlocks[b] == null) newBlocks[b] = new long[BLOCK_CHUNKS][];
+			if (newBlocks[b][k] == null) newBlocks[b][k] = new long[CHUNK_ROWS * words];
+			for (int w = 0; w < words; w++) {
+				newBlocks[b][k][(to % CHUNK_ROWS)*words + w] = getRowWord(from, w);
+			}
+			to++;
+		}
+
+		// heights, scanning down from the new top
+		int cleared = maxHeight - to;
+		int[][] newHeights = new int[heights.length][COLUMN_CHUNK];
+		int[][] newColFilled = new int[heights.length][COLUMN_CHUNK];
+		int newMaxHeight = 0;
+		int newAggregate = 0;
+		for (int i = 0; i < width; i++) {
+			int y = Math.min(getColumnHeight(i), to) - 1;
+			while (y >= 0 && (word(newBlocks, y, i >>> 6) & (1L << i)) == 0) y--;
+			newHeights[i / COLUMN_CHUNK][i % COLUMN_CHUNK] = y + 1;
+			newColFilled[i / COLUMN_CHUNK][i % COLUMN_CHUNK] = getColumnFilled(i) - cleared;
+			newMaxHeight = Math.max(newMaxHeight, y + 1);
+			newAggregate += y + 1;
+		}
+
+		return new BoardSnapshot(this, newBlocks, newHeights, newColFilled, newMaxHeight,
+				filledCount - cleared*width, newAggregate);
+	}
+
+	/*
+	 Returns word w of row y, for Board.restore().
+	 */
+	long getRowWord(int y, int w) {
+		return word(blocks, y, w);
+	}
+
+	/*
+	 Returns the number of filled blocks in column x, for Board.restore().
+	 */
+	int getColumnFilled(int x) {
+		return colFilled[x / COLUMN_CHUNK][x % COLUMN_CHUNK];
+	}
+
+	private long word(long[][][] blocks, int y, int w) {
+		long[][] block = blocks[y / BLOCK_ROWS];
+		if (block == null) return 0L;
+		long[] chunk = block[(y / CHUNK_ROWS) % BLOCK_CHUNKS];
+		return (chunk == null) ? 0L : chunk[(y % CHUNK_ROWS)*words + w];
+	}
+
+	// the values of the first width columns, in chunks of COLUMN_CHUNK
+	private static int[][] split(int[] values, int width) {
+		int[][] chunks = new int[(width + COLUMN_CHUNK - 1) / COLUMN_CHUNK][COLUMN_CHUNK];
+		for (int c = 0; c < chunks.length; c++) {
+			System.arraycopy(values, c*COLUMN_CHUNK, chunks[c], 0, Math.min(COLUMN_CHUNK, width - c*COLUMN_CHUNK));
+		}
+		return chunks;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder buff = new StringBuilder();
+		for (int y = height-1; y>=0; y--) {
+			buff.append('|');
+			for (int x=0; x<width; x++) {
+				if (getGrid(x,y)) buff.append('+');
+				else buff.append(' ');
+			}
+			buff.append("|\n");
+		}
+		for (int x=0; x<width+2; x++) buff.append('-');
+		return(buff.toString());
+	}
+}
@@ -1,5 +1,8 @@
 import junit.framework.TestCase;
 
+import java.io.*;
+import java.util.Random;
+
 
 public class BoardTest extends TestCase {
 	Board b;
@@ -51,5 +54,433 @@ public class BoardTest extends TestCase {
 	// place, clearRows, undo, place ... checking a few col/row/max
 	// numbers that the board looks right after the operations.
 	
-	/**/
+	// Drop heights land on the tallest column under the piece
+	public void testDropHeight() {
+		b.commit();
+		assertEquals(2, b.dropHeight(pyr1, 0));
+		assertEquals(1, b.dropHeight(sRotated, 1));
+		
+		Board wide = new Board(6, 10);
+		Piece[] pieces = Piece.getPieces();
+		wide.place(pieces[Piece.STICK], 0, 0);
+		wide.commit();
+		assertEquals(0, wide.dropHeight(pieces[Piece.SQUARE], 3));
+		assertEquals(4, wide.dropHeight(pieces[Piece.SQUARE], 0));
+	}
+	
+	// Fill two rows, clear them, then undo the whole thing
+	public void testClearAndUndo() {
+		Board c = new Board(4, 6);
+		Piece[] pieces = Piece.getPieces();
+		c.place(pieces[Piece.SQUARE], 0, 0);
+		c.commit();
+		c.place(pieces[Piece.STICK], 3, 0);
+		c.commit();
+		
+		int result = c.place(new Piece("0 0  0 1  0 2"), 2, 0);
+		assertEquals(Board.PLACE_ROW_FILLED, result);
+		assertEquals(2, c.clearRows());
+		assertEquals(2, c.getMaxHeight());
+		assertEquals(2, c.getRowWidth(0));
+		assertEquals(1, c.getRowWidth(1));
+		assertEquals(0, c.getColumnHeight(0));
+		assertEquals(1, c.getColumnHeight(2));
+		assertEquals(2, c.getColumnHeight(3));
+		assertFalse(c.getGrid(0, 0));
+		assertTrue(c.getGrid(2, 0));
+		
+		c.undo();
+		assertEquals(4, c.getMaxHeight());
+		assertEquals(3, c.getRowWidth(0));
+		assertEquals(1, c.getRowWidth(2));
+		assertEquals(0, c.getColumnHeight(2));
+		assertEquals(4, c.getColumnHeight(3));
+	}
+	
+	// Clearing more rows than the journal holds falls back to a snapshot
+	public void testClearManyAndUndo() {
+		Board c = new Board(2, 8);
+		Piece tall = new Piece("0 0  0 1  0 2  0 3  0 4  0 5");
+		c.place(tall, 0, 0);
+		c.commit();
+		c.place(new Piece("0 0"), 1, 6);
+		c.commit();
+		assertEquals(Board.PLACE_ROW_FILLED, c.place(tall, 1, 0));
+		assertEquals(6, c.clearRows());
+		assertEquals(1, c.getMaxHeight());
+		assertEquals(1, c.getColumnHeight(1));
+		assertEquals(0, c.getColumnHeight(0));
+		
+		c.undo();
+		assertEquals(7, c.getMaxHeight());
+		assertEquals(6, c.getColumnHeight(0));
+		assertEquals(7, c.getColumnHeight(1));
+		assertEquals(1, c.getRowWidth(0));
+		assertEquals(1, c.getRowWidth(6));
+		assertFalse(c.getGrid(1, 3));
+	}
+	
+	// Boards wider than 64 use several words per row
+	public void testWideBoard() {
+		Board wide = new Board(100, 8);
+		Piece stick = Piece.getPieces()[Piece.STICK].fastRotation();
+		for (int x = 0; x + 4 <= 100; x += 4) {
+			assertTrue(wide.place(stick, x, 0) <= Board.PLACE_ROW_FILLED);
+			wide.commit();
+		}
+		assertEquals(100, wide.getRowWidth(0));
+		assertEquals(Board.PLACE_OK, wide.place(stick, 62, 1));
+		assertTrue(wide.getGrid(63, 1));
+		assertTrue(wide.getGrid(64, 1));
+		assertFalse(wide.getGrid(66, 1));
+		assertEquals(1, wide.clearRows());
+		assertEquals(1, wide.getMaxHeight());
+		assertEquals(1, wide.getColumnHeight(65));
+		assertEquals(0, wide.getColumnHeight(61));
+		wide.undo();
+		assertEquals(100, wide.getRowWidth(0));
+		assertEquals(0, wide.getRowWidth(1));
+	}
+	
+	// Copies and hashes follow the blocks, not the board object
+	public void testCopyAndHash() {
+		Board copy = new Board(b);
+		assertEquals(b.contentHash(), copy.contentHash());
+		assertEquals(2, copy.getColumnHeight(1));
+		assertEquals(3, copy.getRowWidth(0));
+		
+		copy.place(s, 0, 2);
+		copy.commit();
+		assertTrue(b.contentHash() != copy.contentHash());
+		assertEquals(2, b.getMaxHeight());
+		
+		copy.copyFrom(b);
+		assertEquals(b.contentHash(), copy.contentHash());
+		assertEquals(2, copy.getMaxHeight());
+		assertFalse(copy.getGrid(0, 2));
+		assertEquals(0, copy.getRowWidth(3));
+	}
+	
+	// The board features follow place() and undo()
+	public void testFeatures() {
+		assertEquals(4, b.getFilledCount());
+		assertEquals(4, b.getAggregateHeight());
+		assertEquals(0, b.getHoles());
+		assertEquals(2, b.getBumpiness());
+		assertEquals(1, b.getWellDepth(0));
+		assertEquals(0, b.getWellDepth(1));
+		assertEquals(2, b.getWellSum());
+		
+		b.commit();
+		b.place(new Piece("0 0  1 0"), 0, 2);
+		assertEquals(1, b.getHoles());
+		assertEquals(1, b.getColumnHoles(0));
+		assertEquals(0, b.getColumnHoles(1));
+		assertEquals(7, b.getAggregateHeight());
+		assertEquals(2, b.getBumpiness());
+		assertEquals(2, b.getWellDepth(2));
+		assertEquals(2, b.getWellSum());
+		
+		b.undo();
+		assertEquals(0, b.getHoles());
+		assertEquals(4, b.getAggregateHeight());
+		assertEquals(2, b.getBumpiness());
+		assertEquals(2, b.getWellSum());
+	}
+	
+	// Snapshots follow a game played on a board, and old snapshots never change
+	public void testSnapshot() {
+		Piece[] pieces = Piece.getPieces();
+		Random random = new Random(4);
+		Board board = new Board(10, 20);
+		BoardSnapshot snap = board.snapshot();
+		BoardSnapshot empty = snap;
+		for (int i = 0; i < 200; i++) {
+			Piece piece = pieces[random.nextInt(pieces.length)];
+			int x = random.nextInt(board.getWidth() - piece.getWidth() + 1);
+			int y = board.dropHeight(piece, x);
+			assertEquals(y, snap.dropHeight(piece, x));
+			if (y + piece.getHeight() > board.getHeight()) break;
+			
+			BoardSnapshot before = snap;
+			String text = before.toString();
+			board.place(piece, x, y);
+			board.clearRows();
+			board.commit();
+			snap = snap.place(piece, x, y).clearRows();
+			
+			assertEquals(text, before.toString());
+			assertEquals(board.toString(), snap.toString());
+			assertEquals(board.getMaxHeight(), snap.getMaxHeight());
+			assertEquals(board.getHoles(), snap.getHoles());
+			for (int j = 0; j < board.getWidth(); j++) {
+				assertEquals(board.getColumnHeight(j), snap.getColumnHeight(j));
+			}
+			assertEquals(board.toString(), board.snapshot().toString());
+		}
+		assertEquals(0, empty.getFilledCount());
+		assertEquals(0, empty.getMaxHeight());
+		
+		// back into a board, which then works as usual
+		Board restored = new Board(snap);
+		assertEquals(board.contentHash(), restored.contentHash());
+		restored.place(pieces[Piece.SQUARE], 0, restored.dropHeight(pieces[Piece.SQUARE], 0));
+		restored.undo();
+		assertEquals(board.contentHash(), restored.contentHash());
+		board.restore(empty);
+		assertEquals(0, board.getMaxHeight());
+		
+		// a play that does not fit gives null
+		assertNull(empty.place(pieces[Piece.STICK], 0, 18));
+		assertNull(empty.place(pieces[Piece.SQUARE], 9, 0));
+	}
+	
+	// Snapshots of a board over several blocks of rows and chunks of columns
+	public void testTallWideSnapshot() {
+		Piece[] pieces = Piece.getPieces();
+		Random random = new Random(9);
+		Board board = new Board(150, 700);
+		BoardSnapshot snap = board.snapshot();
+		BoardSnapshot early = null;
+		String earlyText = null;
+		for (int i = 0; i < 600; i++) {
+			// sticks up the edges reach past the first blocks of rows
+			Piece piece = (i % 3 == 0) ? pieces[Piece.STICK] : pieces[random.nextInt(pieces.length)];
+			int x = (i % 3 == 0) ? ((i % 2 == 0) ? 0 : 149) : random.nextInt(board.getWidth() - piece.getWidth() + 1);
+			int y = board.dropHeight(piece, x);
+			board.place(piece, x, y);
+			board.clearRows();
+			board.commit();
+			snap = snap.place(piece, x, y).clearRows();
+			if (i == 100) {
+				early = snap;
+				earlyText = snap.toString();
+			}
+		}
+		assertTrue(board.getMaxHeight() > 300);
+		assertEquals(board.toString(), snap.toString());
+		assertEquals(board.getHoles(), snap.getHoles());
+		assertEquals(board.getAggregateHeight(), snap.getAggregateHeight());
+		for (int j = 0; j < board.getWidth(); j++) {
+			assertEquals(board.getColumnHeight(j), snap.getColumnHeight(j));
+		}
+		assertEquals(earlyText, early.toString());
+		assertEquals(board.contentHash(), new Board(snap).contentHash());
+		
+		// a full row high up is cleared
+		BoardSnapshot line = new Board(148, 700).snapshot();
+		for (int x = 0; x < 148; x += 4) line = line.place(pieces[Piece.STICK].fastRotation(), x, 400);
+		line = line.place(pieces[Piece.STICK], 0, 0);
+		assertEquals(148, line.getRowWidth(400));
+		line = line.clearRows();
+		assertEquals(4, line.getMaxHeight());
+		assertEquals(4, line.getFilledCount());
+		assertEquals(4, line.getAggregateHeight());
+	}
+	
+	// The one-pass features agree with counting block by block
+	public void testBoardFeatures() {
+		BoardFeatures all = new BoardFeatures(BoardFeatures.ALL);
+		double[] values = new double[BoardFeatures.COUNT];
+		Random random = new Random(5);
+		for (int width: new int[] {10, 64, 70}) {
+			for (int n = 0; n < 20; n++) {
+				Board board = new Board(width, 12);
+				for (int y = 0; y < 8; y++) {
+					for (int x = 0; x < width; x++) {
+						if (random.nextInt(3) > 0 && (y == 0 || board.getGrid(x, y-1) || random.nextInt(4) == 0)) {
+							board.place(new Piece("0 0"), x, y);
+							board.commit();
+						}
+					}
+				}
+				all.evaluate(board, null, 0, 0, values);
+				
+				int holes = 0, rowsWithHoles = 0, wells = 0, rowTrans = 0, colTrans = 0;
+				for (int y = 0; y < board.getMaxHeight(); y++) {
+					boolean hole = false;
+					for (int x = 0; x < width; x++) {
+						boolean filled = board.getGrid(x, y);
+						if (!filled && y < board.getColumnHeight(x)) { holes++; hole = true; }
+						if (filled != (x == 0 || board.getGrid(x-1, y))) rowTrans++;
+						if (filled != (y == 0 || board.getGrid(x, y-1))) colTrans++;
+					}
+					if (!board.getGrid(width-1, y)) rowTrans++;
+					if (hole) rowsWithHoles++;
+				}
+				for (int x = 0; x < width; x++) {
+					int depth = 0;
+					for (int y = board.getMaxHeight() - 1; y >= board.getColumnHeight(x); y--) {
+						boolean well = board.getGrid(x-1, y) && board.getGrid(x+1, y);
+						depth = well ? depth + 1 : 0;
+						wells += depth;
+					}
+				}
+				
+				assertEquals(holes, (int)values[BoardFeatures.HOLES]);
+				assertEquals(board.getHoles(), holes);
+				assertEquals(rowsWithHoles, (int)values[BoardFeatures.ROWS_WITH_HOLES]);
+				assertEquals(wells, (int)values[BoardFeatures.WELLS]);
+				assertEquals(rowTrans, (int)values[BoardFeatures.ROW_TRANSITIONS]);
+				assertEquals(colTrans, (int)values[BoardFeatures.COLUMN_TRANSITIONS]);
+				assertEquals(board.getBumpiness(), (int)values[BoardFeatures.BUMPINESS]);
+			}
+		}
+		
+		// features outside the mask are left at 0
+		new BoardFeatures(BoardFeatures.mask(BoardFeatures.MAX_HEIGHT)).evaluate(b, null, 0, 0, values);
+		assertEquals(2.0, values[BoardFeatures.MAX_HEIGHT]);
+		assertEquals(0.0, values[BoardFeatures.BUMPINESS]);
+	}
+	
+	// clearRows() notes the rows and the piece blocks it removed
+	public void testErodedCells() {
+		Board board = new Board(4, 6);
+		board.place(new Piece("0 0  1 0  2 0  0 1  1 1  2 1"), 0, 0);
+		board.commit();
+		board.place(pieces(Piece.STICK), 3, 0);
+		assertEquals(2, board.clearRows());
+		assertEquals(2, board.getLastRowsCleared());
+		assertEquals(2, board.getLastErodedCells());
+		board.undo();
+		assertEquals(0, board.getLastRowsCleared());
+		assertEquals(0, board.getLastErodedCells());
+	}
+
+	// a tall board only stores the rows the stack reaches
+	public void testTallBoard() {
+		Board board = new Board(4, 1000000);
+		board.place(new Piece("0 0  1 0  2 0  0 1  2 1"), 0, 0);
+		board.commit();
+		assertEquals(2, board.getColumnHeight(0));
+		assertEquals(1, board.getColumnHeight(1));
+
+		// a stick on the right fills row 0 only, column 1 keeps its hole
+		board.place(pieces(Piece.STICK), 3, 0);
+		assertEquals(1, board.clearRows());
+		assertEquals(1, board.getColumnHeight(0));
+		assertEquals(0, board.getColumnHeight(1));
+		assertEquals(3, board.getColumnHeight(3));
+		assertEquals(3, board.getMaxHeight());
+		board.undo();
+		assertEquals(2, board.getMaxHeight());
+		assertEquals(0, board.getColumnHeight(3));
+
+		// drop sticks in column 3 all the way up past the first rows
+		for (int i = 0; i < 50; i++) {
+			int y = board.dropHeight(pieces(Piece.STICK), 3);
+			assertTrue(board.place(pieces(Piece.STICK), 3, y) <= Board.PLACE_ROW_FILLED);
+			board.clearRows();
+			board.commit();
+		}
+		assertEquals(199, board.getColumnHeight(3));
+		assertTrue(board.getWidths().length < 1000);
+		assertEquals(0, board.getRowWidth(500000));
+		assertFalse(board.getGrid(3, 500000));
+	}
+
+	// Each validation mode catches a broken row width when it is supposed to
+	public void testValidation() {
+		b.commit();
+		assertEquals(Board.Validation.CHECKSUM, b.getValidation());
+		b.getWidths()[1]++;		// the widths array is the board's own
+
+		b.setValidation(Board.Validation.OFF);
+		b.sanityCheck();
+
+		b.setValidation(Board.Validation.SAMPLED);
+		b.setSampleInterval(3);
+		b.sanityCheck();
+		b.sanityCheck();
+		assertSanityFails(b);
+
+		b.setValidation(Board.Validation.CHECKSUM);
+		assertSanityFails(b);
+		b.setValidation(Board.Validation.FULL);
+		assertSanityFails(b);
+
+		b.getWidths()[1]--;
+		b.sanityCheck();
+		Board copy = new Board(b);
+		assertEquals(Board.Validation.FULL, copy.getValidation());
+		copy.setValidation(Board.Validation.CHECKSUM);
+		copy.place(pyr1, 0, 2);
+		copy.undo();
+		copy.place(s, 0, 2);
+		copy.clearRows();
+	}
+
+	private void assertSanityFails(Board board) {
+		try {
+			board.sanityCheck();
+			fail("broken board passed sanityCheck()");
+		}
+		catch (RuntimeException expected) {
+		}
+	}
+
+	// Dataset records read back from the mapping hold the boards and moves written
+	public void testDatasetRoundTrip() throws Exception {
+		File file = File.createTempFile("board", ".dataset");
+		file.deleteOnExit();
+		DatasetWriter writer = new DatasetWriter(new FileOutputStream(file), 10, 24);
+		Brain brain = new DefaultBrain();
+		Random random = new Random(5);
+		Board board = new Board(10, 24);
+		Board[] boards = new Board[60];
+		Brain.Move[] moves = new Brain.Move[60];
+		Piece[] played = new Piece[60];
+		for (int i = 0; i < 60; i++) {
+			played[i] = pieces(random.nextInt(7));
+			moves[i] = brain.bestMove(board, played[i], 20, null);
+			boards[i] = new Board(board);
+			writer.write(board, played[i], moves[i], moves[i].score);
+			board.place(moves[i].piece, moves[i].x, moves[i].y);
+			board.clearRows();
+			board.commit();
+		}
+		writer.close();
+		assertEquals(16 + 60*66, file.length());
+
+		DatasetReader reader = new DatasetReader(file.toPath());
+		assertEquals(60, reader.getCount());
+		for (int i = 0; i < 60; i++) {
+			assertSame(played[i], reader.getPiece(i));
+			assertSame(moves[i].piece, reader.getMovePiece(i));
+			assertEquals(moves[i].x, reader.getX(i));
+			assertEquals(moves[i].y, reader.getY(i));
+			assertEquals(moves[i].score, reader.getScore(i), 1e-3);
+			for (int x = 0; x < 10; x++) {
+				assertEquals(boards[i].getColumnHeight(x), reader.getColumnHeight(i, x));
+				for (int y = 0; y < 24; y++) assertEquals(boards[i].getGrid(x, y), reader.getGrid(i, x, y));
+			}
+		}
+		reader.close();
+
+		// pieces that would not read back as themselves are refused
+		Piece[] loaded = Piece.readPieces(new StringReader("0 0  0 1  0 2  0 3  0 4\n"));
+		DatasetWriter refusing = new DatasetWriter(new ByteArrayOutputStream(), 10, 24);
+		Brain.Move move = brain.bestMove(new Board(10, 24), loaded[0], 20, null);
+		try {
+			refusing.write(new Board(10, 24), loaded[0], move, 0);
+			fail("wrote a loaded piece");
+		}
+		catch (IllegalArgumentException expected) {
+		}
+		assertEquals(0, refusing.getCount());
+		
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[20]);
+		out.close();
+		try {
+			new DatasetReader(file.toPath());
+			fail("read a file that is not a dataset");
+		}
+		catch (IOException expected) {
+		}
+	}
+	
+	private Piece pieces(int i) {
+		return Piece.getPieces()[i];
+	}
 }
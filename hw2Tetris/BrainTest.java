@@ -0,0 +1,553 @@
+import junit.framework.TestCase;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/*
+  Unit tests for the Brain implementations. Most tests play a
+  seeded game with DefaultBrain and check that another brain agrees
+  with it (or does something sensible) at each step.
+ */
+public class BrainTest extends TestCase {
+	private Piece[] pieces;
+	private DefaultBrain defaultBrain;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		pieces = Piece.getPieces();
+		defaultBrain = new DefaultBrain();
+	}
+
+	/*
+	 Plays the move on the board, clears rows and commits.
+	 */
+	private void play(Board board, Brain.Move move) {
+		int result = board.place(move.piece, move.x, move.y);
+		assertTrue(result <= Board.PLACE_ROW_FILLED);
+		board.clearRows();
+		board.commit();
+	}
+
+	// The parallel brain makes exactly the same choices as the serial one
+	public void testParallelMatchesDefault() {
+		ParallelBrain parallel = new ParallelBrain(new ForkJoinPool(4));
+		Random random = new Random(0);
+		Board board = new Board(10, 24);
+		for (int i = 0; i < 300; i++) {
+			Piece piece = pieces[random.nextInt(pieces.length)];
+			Brain.Move expected = defaultBrain.bestMove(board, piece, 20, null);
+			Brain.Move actual = parallel.bestMove(board, piece, 20, null);
+			if (expected == null) {
+				assertNull(actual);
+				board = new Board(10, 24);
+				continue;
+			}
+			assertSame(expected.piece, actual.piece);
+			assertEquals(expected.x, actual.x);
+			assertEquals(expected.y, actual.y);
+			assertEquals(expected.score, actual.score, 0.0);
+			play(board, expected);
+		}
+	}
+
+	// One ply with a beam of one is just DefaultBrain
+	public void testLookaheadDepthOne() {
+		LookaheadBrain lookahead = new LookaheadBrain(1, 1);
+		Random random = new Random(1);
+		Board board = new Board(10, 24);
+		for (int i = 0; i < 100; i++) {
+			Piece piece = pieces[random.nextInt(pieces.length)];
+			Brain.Move expected = defaultBrain.bestMove(board, piece, 20, null);
+			Brain.Move actual = lookahead.bestMove(board, piece, 20, null);
+			if (expected == null) break;
+			assertSame(expected.piece, actual.piece);
+			assertEquals(expected.x, actual.x);
+			assertEquals(expected.y, actual.y);
+			play(board, expected);
+		}
+	}
+
+	// The deeper search leaves the board alone and returns legal plays
+	public void testLookaheadWithPreview() {
+		LookaheadBrain lookahead = new LookaheadBrain(3, 3);
+		Random random = new Random(2);
+		Board board = new Board(10, 24);
+		Piece next = pieces[random.nextInt(pieces.length)];
+		for (int i = 0; i < 60; i++) {
+			Piece piece = next;
+			next = pieces[random.nextInt(pieces.length)];
+			long hash = board.contentHash();
+			Brain.Move move = lookahead.bestMove(board, piece, next, 20, null);
+			assertNotNull(move);
+			assertEquals(hash, board.contentHash());
+			assertEquals(board.dropHeight(move.piece, move.x), move.y);
+			play(board, move);
+		}
+		assertTrue(board.getMaxHeight() <= 20);
+	}
+
+	// A passed deadline gives the best-rated play, a far one the full search
+	public void testAnytimeLookahead() {
+		LookaheadBrain lookahead = new LookaheadBrain();
+		Random random = new Random(3);
+		Board board = new Board(10, 24);
+		Piece next = pieces[random.nextInt(pieces.length)];
+		for (int i = 0; i < 40; i++) {
+			Piece piece = next;
+			next = pieces[random.nextInt(pieces.length)];
+			Brain.Move full = lookahead.bestMove(board, piece, next, 20, null);
+			Brain.Move timed = lookahead.bestMove(board, piece, next, 20, null, System.nanoTime() + 60000000000L);
+			assertSame(full.piece, timed.piece);
+			assertEquals(full.x, timed.x);
+
+			Brain.Move late = lookahead.bestMove(board, piece, next, 20, null, System.nanoTime() - 1);
+			Brain.Move rated = defaultBrain.bestMove(board, piece, 20, null);
+			assertSame(rated.piece, late.piece);
+			assertEquals(rated.x, late.x);
+			assertEquals(rated.y, late.y);
+			play(board, full);
+		}
+	}
+
+	// The engine hands out the board without its falling piece, and moves the piece on request
+	public void testEngineMoveTo() {
+		TetrisEngine engine = new TetrisEngine();
+		engine.startGame(new Random(0));
+		Board landed = engine.copyLandedBoard();
+		assertEquals(0, landed.getMaxHeight());
+		assertTrue(engine.getBoard().getMaxHeight() > 0);
+
+		Brain.Move move = defaultBrain.bestMove(landed, engine.getCurrentPiece(), 20, null);
+		assertTrue(engine.moveTo(move.piece, move.x, move.y));
+		assertEquals(move.x, engine.getCurrentX());
+		assertEquals(move.y, engine.getCurrentY());
+		assertFalse(engine.moveTo(move.piece, -5, 0));
+		assertEquals(move.x, engine.getCurrentX());
+		engine.tick(TetrisEngine.DOWN);
+		assertEquals(2, engine.getCount());
+	}
+
+	// Default weights play exactly like DefaultBrain, and survive a save and load
+	public void testWeightedMatchesDefault() throws Exception {
+		WeightedBrain weighted = new WeightedBrain();
+		Random random = new Random(3);
+		Board board = new Board(10, 24);
+		for (int i = 0; i < 100; i++) {
+			Piece piece = pieces[random.nextInt(pieces.length)];
+			Brain.Move expected = defaultBrain.bestMove(board, piece, 20, null);
+			Brain.Move actual = weighted.bestMove(board, piece, 20, null);
+			if (expected == null) break;
+			assertSame(expected.piece, actual.piece);
+			assertEquals(expected.x, actual.x);
+			assertEquals(expected.y, actual.y);
+			assertEquals(expected.score, actual.score, 1e-9);
+			play(board, expected);
+		}
+
+		java.io.File file = java.io.File.createTempFile("brain", ".weights");
+		try {
+			WeightedBrain tuned = new WeightedBrain(new double[] { 1, 2.5, -3, 0.125, 7 });
+			tuned.save(file.getPath());
+			assertTrue(Arrays.equals(tuned.getWeights(), WeightedBrain.load(file.getPath()).getWeights()));
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	// The tuner finds the same weights whatever the number of threads
+	public void testTunerDeterministic() throws Exception {
+		ExecutorService one = Executors.newFixedThreadPool(1);
+		ExecutorService three = Executors.newFixedThreadPool(3);
+		try {
+			double[] a = new BrainTuner(2, 30, 5, one).run(2, 4, null);
+			double[] b = new BrainTuner(2, 30, 5, three).run(2, 4, null);
+			assertTrue(Arrays.equals(a, b));
+		}
+		finally {
+			one.shutdown();
+			three.shutdown();
+		}
+	}
+
+	// A repeated surface is a hit, plays stay legal, and holes up top bypass the cache
+	public void testCachingBrain() {
+		CachingBrain caching = new CachingBrain(defaultBrain, 4);
+		Board board = new Board(10, 24);
+		Brain.Move first = caching.bestMove(board, pieces[Piece.L1], 20, null);
+		Brain.Move again = caching.bestMove(board, pieces[Piece.L1], 20, null);
+		assertEquals(1, caching.getMisses());
+		assertEquals(1, caching.getHits());
+		assertSame(first.piece, again.piece);
+		assertEquals(first.x, again.x);
+		assertEquals(first.y, again.y);
+
+		// the same surface two rows up, with a hole below the lowest column top
+		board.place(new Piece("1 0  2 0  3 0  4 0  5 0  6 0  7 0  8 0  9 0"), 0, 0);
+		board.commit();
+		board.place(new Piece("0 0  1 0  2 0  3 0  4 0  5 0  6 0  7 0  8 0  9 0"), 0, 1);
+		board.commit();
+		assertEquals(1, board.getHoles());
+		Brain.Move raised = caching.bestMove(board, pieces[Piece.L1], 20, null);
+		assertEquals(2, caching.getHits());
+		assertEquals(first.y + 2, raised.y);
+		assertEquals(board.dropHeight(raised.piece, raised.x), raised.y);
+
+		// a hole higher up is not shown by the surface
+		board = new Board(10, 24);
+		board.place(new Piece("0 0  0 2  1 0"), 0, 0);
+		board.commit();
+		caching.bestMove(board, pieces[Piece.L1], 20, null);
+		assertEquals(1, caching.getBypasses());
+
+		// the cache stays within its capacity
+		for (int i = 0; i < pieces.length; i++) {
+			caching.bestMove(new Board(10, 24), pieces[i], 20, null);
+		}
+		assertEquals(4, caching.size());
+		assertTrue(caching.getEvictions() > 0);
+	}
+
+	// The feature brain makes legal plays and keeps the stack low
+	public void testFeatureBrain() {
+		FeatureBrain brain = new FeatureBrain();
+		TetrisEngine engine = new TetrisEngine();
+		engine.playGame(brain, new Random(6), 300);
+		assertTrue(engine.getCount() >= 300);
+		assertTrue(engine.getRowsCleared() > 100);
+	}
+
+	// Recorded games replay to the same boards, and a changed log is caught
+	public void testRecordAndReplay() throws Exception {
+		java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+		TetrisEngine engine = new TetrisEngine();
+		ReplayRecorder recorder = new ReplayRecorder(engine, bytes, null);
+		engine.setListener(recorder);
+		long[] hashes = new long[3];
+		for (int g = 0; g < hashes.length; g++) {
+			engine.playGame(defaultBrain, new Random(g), 100);
+			hashes[g] = engine.getBoard().contentHash();
+		}
+		recorder.close();
+		byte[] log = bytes.toByteArray();
+
+		Replayer replayer = new Replayer(new java.io.ByteArrayInputStream(log));
+		for (int g = 0; g < hashes.length; g++) {
+			assertTrue(replayer.replayGame());
+			assertEquals(hashes[g], replayer.getBoard().contentHash());
+		}
+		assertFalse(replayer.replayGame());
+
+		// turn the second piece of the first game
+		log[12] ^= 1;
+		replayer = new Replayer(new java.io.ByteArrayInputStream(log));
+		try {
+			replayer.replayGame();
+			fail("changed log replayed");
+		}
+		catch (java.io.IOException expected) {
+		}
+	}
+
+	// Every brain plays the same games, so a brain against itself differs by exactly 0
+	public void testTournament() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			BrainTournament tournament = new BrainTournament(4, 150, 7, pool);
+			tournament.addBrain("DefaultBrain");
+			tournament.addBrain("BadBrain");
+			tournament.addBrain("again", DefaultBrain::new);
+			List<BrainTournament.Result> results = tournament.run();
+			assertEquals(3, results.size());
+
+			TetrisEngine engine = new TetrisEngine();
+			engine.playGame(defaultBrain, new Random(7 + 2), 150);
+			assertEquals(engine.getRowsCleared(), results.get(0).rows[2]);
+			assertEquals(engine.getLanded(), results.get(0).pieces[2]);
+			for (BrainTournament.Result r: results) {
+				for (int pieces: r.pieces) assertTrue(pieces <= 150);
+			}
+
+			// a game stopped by the cap played exactly maxPieces pieces
+			BrainTournament capped = new BrainTournament(3, 30, 7, pool);
+			capped.addBrain("DefaultBrain");
+			for (int pieces: capped.run().get(0).pieces) assertEquals(30, pieces);
+			assertTrue(Arrays.equals(results.get(0).rows, results.get(2).rows));
+			assertEquals(0.0, BrainTournament.pairedDifference(results.get(2).rows, results.get(0).rows)[0], 0.0);
+			assertTrue(results.get(0).moves > 0);
+
+			String csv = BrainTournament.toCsv(results);
+			assertEquals(4, csv.split("\n").length);
+			assertTrue(csv.startsWith("brain,games,"));
+			assertTrue(BrainTournament.toJson(results).contains("\"brain\": \"BadBrain\""));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	// Percentiles are nearest rank
+	public void testPercentile() {
+		int[] values = {5, 1, 4, 2, 3};
+		assertEquals(1, BrainTournament.percentile(values, 5));
+		assertEquals(3, BrainTournament.percentile(values, 50));
+		assertEquals(5, BrainTournament.percentile(values, 95));
+	}
+
+	// The metrics add up what they are told, and the histogram finds the percentiles
+	public void testMetrics() {
+		TetrisMetrics metrics = TetrisMetrics.getInstance();
+		metrics.reset();
+		TetrisMetrics.place();
+		TetrisMetrics.place();
+		TetrisMetrics.clearRows(3);
+		TetrisMetrics.candidates(34);
+		for (int i = 0; i < 99; i++) TetrisMetrics.move(1000);	// the 1024ns bucket
+		TetrisMetrics.move(1000000);
+		assertEquals(2, metrics.getPlaces());
+		assertEquals(1, metrics.getClearRowsCalls());
+		assertEquals(3, metrics.getRowsCleared());
+		assertEquals(100, metrics.getMoves());
+		assertEquals(0.34, metrics.getCandidatesPerMove(), 1e-9);
+		assertEquals(1.024, metrics.getMoveP50Micros(), 1e-9);
+		assertEquals(1.024, metrics.getMoveP99Micros(), 1e-9);
+		assertTrue(metrics.dump().contains("2 place"));
+		metrics.reset();
+		assertEquals(0, metrics.getMoves());
+		assertEquals(0.0, metrics.getMoveP50Micros(), 0.0);
+	}
+
+	// Once warmed up, bestMove() allocates nothing, whatever the board's validation mode
+	public void testBestMoveAllocatesNothing() {
+		java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)) return;	// cannot measure on this JVM
+		com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) threads;
+		long id = Thread.currentThread().getId();
+
+		Brain[] brains = { new DefaultBrain(), new WeightedBrain(), new FeatureBrain(), new LookaheadBrain(), new ReachabilityBrain() };
+		for (Board.Validation validation: Board.Validation.values()) {
+			Board board = new Board(10, 24);
+			board.setValidation(validation);
+			board.setSampleInterval(7);
+			Random random = new Random(5);
+			for (int i = 0; i < 20; i++) {
+				play(board, defaultBrain.bestMove(board, pieces[random.nextInt(pieces.length)], 20, null));
+			}
+
+			Brain.Move move = new Brain.Move();
+			for (Brain brain: brains) {
+				for (int i = 0; i < 100; i++) brain.bestMove(board, pieces[i % pieces.length], 20, move);
+
+				// the best of a few rounds, since the JVM itself may allocate now and then
+				long bytes = Long.MAX_VALUE;
+				for (int round = 0; round < 3 && bytes > 0; round++) {
+					long before = mx.getThreadAllocatedBytes(id);
+					long overhead = mx.getThreadAllocatedBytes(id) - before;	// the measuring itself
+					before = mx.getThreadAllocatedBytes(id);
+					for (int i = 0; i < 100; i++) brain.bestMove(board, pieces[i % pieces.length], 20, move);
+					bytes = Math.min(bytes, mx.getThreadAllocatedBytes(id) - before - overhead);
+				}
+				assertEquals(brain.getClass().getName() + " " + validation, 0, bytes);
+			}
+		}
+	}
+
+	// On an empty board the reachable placements are exactly the straight drops
+	public void testMoveGeneratorEmptyBoard() {
+		Board board = new Board(10, 24);
+		MoveGenerator generator = new MoveGenerator();
+		for (Piece root: pieces) {
+			int drops = 0;
+			Piece p = root;
+			do {
+				drops += board.getWidth() - p.getWidth() + 1;
+				p = p.fastRotation();
+			} while (p != root);
+
+			assertEquals(drops, generator.generate(board, root));
+			for (int i = 0; i < drops; i++) {
+				assertEquals(0, generator.getY(i));
+				assertTrue(board.canPlace(generator.getPiece(i), generator.getX(i), 0));
+			}
+		}
+	}
+
+	// A flat stick slides under a roof, and its path gets it there one legal verb at a time
+	public void testMoveGeneratorTuck() {
+		Board board = new Board(10, 24);
+		board.place(new Piece("0 0  1 0  2 0  3 0  4 0  5 0"), 0, 2);
+		board.commit();
+		Piece flat = pieces[Piece.STICK].fastRotation();
+		assertEquals(3, board.dropHeight(flat, 0));
+
+		MoveGenerator generator = new MoveGenerator();
+		int count = generator.generate(board, pieces[Piece.STICK]);
+		int tuck = -1;
+		for (int i = 0; i < count; i++) {
+			if (generator.getPiece(i) == flat && generator.getX(i) == 0 && generator.getY(i) == 0) tuck = i;
+		}
+		assertTrue(tuck >= 0);
+
+		// follow the verbs as TetrisEngine.tick() would
+		int[] verbs = new int[10*24*4];
+		int length = generator.getPath(tuck, verbs);
+		Piece piece = pieces[Piece.STICK];
+		int x = (10 - piece.getWidth())/2;
+		int y = 24 - piece.getHeight();
+		for (int k = 0; k < length; k++) {
+			Piece next = piece;
+			int nx = x, ny = y;
+			if (verbs[k] == TetrisEngine.LEFT) nx--;
+			else if (verbs[k] == TetrisEngine.RIGHT) nx++;
+			else if (verbs[k] == TetrisEngine.DOWN) ny--;
+			else {
+				next = piece.fastRotation();
+				nx = x + (piece.getWidth() - next.getWidth())/2;
+				ny = y + (piece.getHeight() - next.getHeight())/2;
+			}
+			assertTrue(board.canPlace(next, nx, ny));
+			piece = next;
+			x = nx;
+			y = ny;
+		}
+		assertSame(flat, piece);
+		assertEquals(0, x);
+		assertEquals(0, y);
+		assertFalse(board.canPlace(flat, 0, -1));
+	}
+
+	// The reachability brain plays whole games, and knows how it got there
+	public void testReachabilityBrain() {
+		ReachabilityBrain brain = new ReachabilityBrain();
+		TetrisEngine engine = new TetrisEngine();
+		engine.playGame(brain, new Random(4), 300);
+		assertTrue(engine.getRowsCleared() > 10);
+
+		Board board = new Board(10, 24);
+		Brain.Move move = brain.bestMove(board, pieces[Piece.L1], 20, null);
+		int[] verbs = new int[10*24*4];
+		assertTrue(brain.getPath(verbs) > 0);
+		assertEquals(move.y, board.dropHeight(move.piece, move.x));
+	}
+
+	// One thread and a rollout budget repeat exactly; four threads still play legal moves
+	public void testMctsBrain() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			MctsBrain single = new MctsBrain(pool, 1, 100, 0, pieces);
+			single.setSeed(1);
+			Board board = new Board(10, 24);
+			Brain.Move first = single.bestMove(board, pieces[Piece.S1], pieces[Piece.STICK], 20, null);
+			assertEquals(100, single.getLastRollouts());
+			Brain.Move again = single.bestMove(board, pieces[Piece.S1], pieces[Piece.STICK], 20, null);
+			assertSame(first.piece, again.piece);
+			assertEquals(first.x, again.x);
+			assertEquals(0, board.getMaxHeight());
+
+			// a preview piece that is not one of the brain's is treated as unknown
+			Piece[] two = { pieces[Piece.SQUARE], pieces[Piece.STICK] };
+			MctsBrain some = new MctsBrain(pool, 1, 100, 0, two);
+			some.setSeed(2);
+			Brain.Move unknown = some.bestMove(board, two[0], null, 20, null);
+			Brain.Move foreign = some.bestMove(board, two[0], pieces[Piece.L1], 20, null);
+			assertSame(unknown.piece, foreign.piece);
+			assertEquals(unknown.x, foreign.x);
+			assertEquals(unknown.score, foreign.score, 1e-12);
+
+			MctsBrain brain = new MctsBrain(pool, 4, 100, 0, pieces);
+			TetrisEngine engine = new TetrisEngine();
+			engine.playGame(brain, new Random(8), 100);
+			assertTrue(engine.getCount() >= 100);
+			assertTrue(engine.getRowsCleared() > 10);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	// Hosted games play just as games played alone, and keep to their tick rates
+	public void testGameHost() throws Exception {
+		GameHost host = new GameHost(3);
+		GameHost.Game[] games = new GameHost.Game[200];
+		for (int g = 0; g < games.length; g++) {
+			games[g] = host.addGame(defaultBrain, new Random(g), 50, 0);
+		}
+		GameHost.Game slow = host.addGame(defaultBrain, new Random(0), 20, 2000000);
+		host.start();
+		assertTrue(host.awaitFinished(60, TimeUnit.SECONDS));
+		assertEquals(0, host.getRunning());
+		assertEquals(games.length + 1, host.getFinished());
+
+		long ticks = slow.getTicks();
+		TetrisEngine engine = new TetrisEngine();
+		for (int g = 0; g < games.length; g++) {
+			engine.playGame(defaultBrain, new Random(g), 50);
+			assertEquals(engine.getCount(), games[g].getEngine().getCount());
+			assertEquals(engine.getRowsCleared(), games[g].getEngine().getRowsCleared());
+			ticks += games[g].getTicks();
+		}
+		assertEquals(ticks, host.getTicks());
+		host.stop();
+
+		// the slow game's 20 ticks, 2ms apart, take at least 38ms
+		long start = System.nanoTime();
+		GameHost timed = new GameHost(1);
+		GameHost.Game game = timed.addGame(defaultBrain, new Random(0), 20, 2000000);
+		timed.start();
+		assertTrue(timed.awaitFinished(10, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= 38000000);
+		assertEquals(slow.getTicks(), game.getTicks());
+		timed.stop();
+	}
+
+	// Unthrottled games take turns a tick at a time: no game moves twice while another waits
+	public void testGameHostFair() throws Exception {
+		final int[] moves = new int[5];
+		final int[][] seen = new int[5][5];		// moves of each game when game i last moved
+		final boolean[] unfair = new boolean[1];
+		GameHost host = new GameHost(1);
+		for (int g = 0; g < moves.length; g++) {
+			final int index = g;
+			host.addGame(new Brain() {
+				public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+					for (int j = 0; j < moves.length; j++) {
+						if (j != index && moves[j] - seen[index][j] > 1) unfair[0] = true;
+					}
+					moves[index]++;
+					seen[index] = moves.clone();
+					return defaultBrain.bestMove(board, piece, limitHeight, move);
+				}
+			}, new Random(g), 200, 0);
+		}
+		host.start();
+		assertTrue(host.awaitFinished(60, TimeUnit.SECONDS));
+		host.stop();
+		assertFalse(unfair[0]);
+		for (int m: moves) assertTrue(m > 50);
+	}
+
+	// A brain that throws ends its own game only
+	public void testGameHostFailure() throws Exception {
+		GameHost host = new GameHost(1);
+		GameHost.Game bad = host.addGame(new Brain() {
+			int moves;
+			public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+				if (++moves == 10) throw new IllegalStateException("bad brain");
+				return defaultBrain.bestMove(board, piece, limitHeight, move);
+			}
+		}, new Random(0), 100, 0);
+		GameHost.Game good = host.addGame(defaultBrain, new Random(0), 100, 0);
+		host.start();
+		assertTrue(host.awaitFinished(60, TimeUnit.SECONDS));
+		host.stop();
+		assertEquals(2, host.getFinished());
+		assertEquals(1, host.getFailed());
+		assertTrue(bad.getFailure() instanceof IllegalStateException);
+		assertEquals(10, bad.getTicks());
+		assertNull(good.getFailure());
+		assertTrue(good.getEngine().getCount() >= 100);
+	}
+}
@@ -0,0 +1,309 @@
+// BrainTournament.java
+/*
+ Plays several brains against each other, headless, and reports
+ how long each survives, how many rows it clears and how long its
+ bestMove() takes.
+
+ Every brain plays the same games: game k uses Random(seed + k) for
+ every brain (as in HeadlessTetris), so all brains get the same piece
+ sequences. The comparison is then paired -- the difference between
+ two brains on the same game has much less spread than either
+ brain's own scores, so far fewer games show a real difference. The
+ report gives that paired difference against the first brain too.
+
+ The games are independent tasks on a fixed thread pool, each with a
+ new brain made by the brain's factory, and results are collected by
+ index, so the statistics do not depend on the number of threads
+ (the timings do, of course).
+
+ Usage: java BrainTournament games seed maxPieces csv|json brainClass...
+ e.g.   java BrainTournament 200 0 10000 csv DefaultBrain BadBrain FeatureBrain
+*/
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+public class BrainTournament {
+	private final int games;
+	private final int maxPieces;
+	private final long seed;
+	private final ExecutorService pool;
+
+	private final List<String> names = new ArrayList<String>();
+	private final List<Supplier<Brain>> factories = new ArrayList<Supplier<Brain>>();
+
+	// each pool thread keeps its own engine
+	private final ThreadLocal<TetrisEngine> engines = ThreadLocal.withInitial(TetrisEngine::new);
+
+	/**
+	 Creates a tournament of the given number of games per brain,
+	 of at most maxPieces pieces each, running them on the pool.
+	*/
+	public BrainTournament(int games, int maxPieces, long seed, ExecutorService pool) {
+		this.games = games;
+		this.maxPieces = maxPieces;
+		this.seed = seed;
+		this.pool = pool;
+	}
+
+	/**
+	 Adds a brain under the given name. The factory is called once
+	 per game, from the pool threads, so brains need not be thread safe.
+	*/
+	public void addBrain(String name, Supplier<Brain> factory) {
+		names.add(name);
+		factories.add(factory);
+	}
+
+	/**
+	 Adds a brain by class name; the class needs a no-argument constructor.
+	*/
+	public void addBrain(final String className) throws ReflectiveOperationException {
+		final Class<?> brainClass = Class.forName(className);
+		brainClass.getDeclaredConstructor();	// fail now rather than in every game
+		addBrain(className, new Supplier<Brain>() {
+			public Brain get() {
+				try {
+					return (Brain) brainClass.getDeclaredConstructor().newInstance();
+				}
+				catch (ReflectiveOperationException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 Plays all the games and returns one Result per brain, in the
+	 order they were added.
+	*/
+	public List<Result> run() throws InterruptedException {
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (int b = 0; b < factories.size(); b++) {
+			final Supplier<Brain> factory = factories.get(b);
+			for (int k = 0; k < games; k++) {
+				final long gameSeed = seed + k;
+				tasks.add(new Callable<Result>() {
+					public Result call() {
+						return playGame(factory.get(), gameSeed);
+					}
+				});
+			}
+		}
+
+		List<Future<Result>> futures = pool.invokeAll(tasks);
+		List<Result> results = new ArrayList<Result>();
+		try {
+			for (int b = 0; b < names.size(); b++) {
+				Result result = new Result(names.get(b), games);
+				for (int k = 0; k < games; k++) {
+					Result game = futures.get(b*games + k).get();
+					result.pieces[k] = game.pieces[0];
+					result.rows[k] = game.rows[0];
+					result.moves += game.moves;
+					result.nanos += game.nanos;
+				}
+				results.add(result);
+			}
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return results;
+	}
+
+	/*
+	 Plays one game on this thread's engine, as a one-game Result.
+	 */
+	private Result playGame(Brain brain, long gameSeed) {
+		TimedBrain timed = new TimedBrain(brain);
+		TetrisEngine engine = engines.get();
+		engine.playGame(timed, new Random(gameSeed), maxPieces);
+
+		Result result = new Result(null, 1);
+		result.pieces[0] = engine.getLanded();
+		result.rows[0] = engine.getRowsCleared();
+		result.moves = timed.moves;
+		result.nanos = timed.nanos;
+		return result;
+	}
+
+	/**
+	 The per-game scores of one brain, game k at index k.
+	*/
+	public static class Result {
+		public final String name;
+		public final int[] pieces;	// pieces played in each game
+		public final int[] rows;	// rows cleared in each game
+		public long moves;			// bestMove() calls in all games
+		public long nanos;			// time spent in them
+
+		public Result(String name, int games) {
+			this.name = name;
+			pieces = new int[games];
+			rows = new int[games];
+		}
+
+		public double getMillisPerMove() {
+			return (moves == 0) ? 0 : nanos / 1e6 / moves;
+		}
+	}
+
+	/*
+	 Times a brain's bestMove() calls. It is a PreviewBrain only in
+	 passing the preview on, so the wrapped brain is asked exactly
+	 what the engine would have asked it.
+	 */
+	private static class TimedBrain implements PreviewBrain {
+		private final Brain brain;
+		long moves;
+		long nanos;
+
+		TimedBrain(Brain brain) {
+			this.brain = brain;
+		}
+
+		public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+			long start = System.nanoTime();
+			Brain.Move best = brain.bestMove(board, piece, limitHeight, move);
+			nanos += System.nanoTime() - start;
+			moves++;
+			return best;
+		}
+
+		public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move) {
+			if (!(brain instanceof PreviewBrain)) return bestMove(board, piece, limitHeight, move);
+			long start = System.nanoTime();
+			Brain.Move best = ((PreviewBrain)brain).bestMove(board, piece, nextPiece, limitHeight, move);
+			nanos += System.nanoTime() - start;
+			moves++;
+			return best;
+		}
+	}
+
+
+	/**
+	 Returns the mean of the values.
+	*/
+	public static double mean(int[] values) {
+		double sum = 0;
+		for (int v: values) sum += v;
+		return sum / values.length;
+	}
+
+	/**
+	 Returns the p-th percentile (0..100) of the values, by the
+	 nearest-rank method, so it is always one of the values.
+	*/
+	public static int percentile(int[] values, double p) {
+		int[] sorted = values.clone();
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(p / 100 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	/**
+	 Returns the mean of a[k]-b[k] and its standard error: the paired
+	 difference of two brains over the same games.
+	*/
+	public static double[] pairedDifference(int[] a, int[] b) {
+		int n = a.length;
+		double mean = 0;
+		for (int k = 0; k < n; k++) mean += a[k] - b[k];
+		mean /= n;
+		double squares = 0;
+		for (int k = 0; k < n; k++) {
+			double d = a[k] - b[k] - mean;
+			squares += d*d;
+		}
+		double error = (n > 1) ? Math.sqrt(squares / (n - 1) / n) : 0;
+		return new double[] {mean, error};
+	}
+
+
+	private static final String[] COLUMNS = {
+		"brain", "games",
+		"piecesMean", "piecesMedian", "piecesP5", "piecesP95",
+		"rowsMean", "rowsMedian", "rowsP5", "rowsP95",
+		"msPerMove", "rowsDiff", "rowsDiffError"
+	};
+
+	/*
+	 The report columns for one brain; the difference is against base.
+	 */
+	private static Object[] summary(Result r, Result base) {
+		double[] diff = pairedDifference(r.rows, base.rows);
+		return new Object[] {
+			r.name, r.pieces.length,
+			mean(r.pieces), percentile(r.pieces, 50), percentile(r.pieces, 5), percentile(r.pieces, 95),
+			mean(r.rows), percentile(r.rows, 50), percentile(r.rows, 5), percentile(r.rows, 95),
+			r.getMillisPerMove(), diff[0], diff[1]
+		};
+	}
+
+	/**
+	 Formats the results as CSV, a header line then a line per brain.
+	 The rowsDiff columns are the paired difference in rows cleared
+	 from the first brain, and its standard error.
+	*/
+	public static String toCsv(List<Result> results) {
+		StringBuilder buff = new StringBuilder();
+		buff.append(String.join(",", COLUMNS)).append('\n');
+		for (Result r: results) {
+			Object[] values = summary(r, results.get(0));
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) buff.append(',');
+				buff.append(format(values[i]));
+			}
+			buff.append('\n');
+		}
+		return buff.toString();
+	}
+
+	/**
+	 Formats the results as a JSON array of objects, one per brain,
+	 with the same fields as toCsv().
+	*/
+	public static String toJson(List<Result> results) {
+		StringBuilder buff = new StringBuilder("[\n");
+		for (int j = 0; j < results.size(); j++) {
+			Object[] values = summary(results.get(j), results.get(0));
+			buff.append("  {");
+			for (int i = 0; i < values.length; i++) {
+				if (i > 0) buff.append(", ");
+				buff.append('"').append(COLUMNS[i]).append("\": ");
+				if (values[i] instanceof String) buff.append('"').append(values[i]).append('"');
+				else buff.append(format(values[i]));
+			}
+			buff.append((j < results.size() - 1) ? "},\n" : "}\n");
+		}
+		return buff.append("]\n").toString();
+	}
+
+	private static String format(Object value) {
+		if (value instanceof Double) return String.format(Locale.ROOT, "%.3f", (Double)value);
+		return String.valueOf(value);
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 5) {
+			System.err.println("usage: java BrainTournament games seed maxPieces csv|json brainClass...");
+			System.exit(2);
+		}
+		int games = Integer.parseInt(args[0]);
+		long seed = Long.parseLong(args[1]);
+		int maxPieces = Integer.parseInt(args[2]);
+		boolean json = args[3].equals("json");
+
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			BrainTournament tournament = new BrainTournament(games, maxPieces, seed, pool);
+			for (int i = 4; i < args.length; i++) tournament.addBrain(args[i]);
+			List<Result> results = tournament.run();
+			System.out.print(json ? toJson(results) : toCsv(results));
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,218 @@
+// BrainTuner.java
+/*
+ Tunes the weights of a WeightedBrain with a simple genetic
+ algorithm, playing headless TetrisEngine games on every core.
+
+ Each generation, every candidate weight vector plays the same
+ seeded games (game k of generation g uses Random(seed*1000003 + g*games + k)),
+ and its fitness is the mean number of rows cleared. The best few
+ candidates survive unchanged; the rest of the next generation are
+ children of tournament-picked parents, blended and mutated. After
+ each generation the best weights are saved in the weights file, so
+ a long run can be stopped at any time and JBrainTetris's "Weighted"
+ brain picks up the latest checkpoint.
+
+ The games are independent tasks on a fixed thread pool and the
+ results are collected by index, so a run with the same arguments
+ gives the same weights whatever the number of threads.
+
+ Usage: java BrainTuner [generations] [population] [games] [seed] [maxPieces] [threads] [file]
+ e.g.   java BrainTuner 50 24 20 0 2000 8 brain.weights
+*/
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class BrainTuner {
+	private static final int ELITE = 2;			// best candidates copied unchanged
+	private static final int TOURNAMENT = 3;	// candidates looked at to pick a parent
+	private static final double MUTATION_RATE = 0.3;
+	private static final double MUTATION_SIZE = 0.2;
+
+	private final int games;
+	private final int maxPieces;
+	private final long seed;
+	private final ExecutorService pool;
+	private PrintStream log;		// progress goes here, if not null
+
+	// each pool thread keeps its own engine
+	private final ThreadLocal<TetrisEngine> engines = ThreadLocal.withInitial(TetrisEngine::new);
+
+	/**
+	 Creates a tuner that rates each candidate over the given number
+	 of games of at most maxPieces pieces, running them on the pool.
+	*/
+	public BrainTuner(int games, int maxPieces, long seed, ExecutorService pool) {
+		this.games = games;
+		this.maxPieces = maxPieces;
+		this.seed = seed;
+		this.pool = pool;
+	}
+
+	/**
+	 Sets where run() reports each generation's best and mean
+	 fitness; null, the default, for no reports.
+	*/
+	public void setLog(PrintStream log) {
+		this.log = log;
+	}
+
+	/**
+	 Runs the given number of generations of the given size, starting
+	 from DefaultBrain's weights plus random ones, and returns the
+	 best weights of the last generation. If fileName is not null,
+	 the best weights of each generation are saved there.
+	*/
+	public double[] run(int generations, int size, String fileName) throws IOException, InterruptedException {
+		Random random = new Random(seed);
+		double[][] population = new double[size][];
+		population[0] = normalize(WeightedBrain.DEFAULT_WEIGHTS.clone());
+		for (int i = 1; i < size; i++) {
+			double[] w = new double[WeightedBrain.FEATURES.length];
+			for (int j = 0; j < w.length; j++) w[j] = random.nextDouble();
+			population[i] = normalize(w);
+		}
+
+		double[] best = null;
+		for (int g = 0; g < generations; g++) {
+			double[] fitness = evaluate(population, g);
+			Integer[] order = rank(fitness);
+			best = population[order[0]];
+
+			if (log != null) log.printf("generation %d: best %.1f rows, mean %.1f rows, %s%n",
+					g, fitness[order[0]], mean(fitness), Arrays.toString(best));
+			if (fileName != null) new WeightedBrain(best).save(fileName);
+
+			if (g < generations-1) population = nextGeneration(population, fitness, order, random);
+		}
+		return best;
+	}
+
+	/**
+	 Returns the fitness of each candidate in the population:
+	 the mean rows cleared over this generation's games.
+	*/
+	public double[] evaluate(double[][] population, int generation) throws InterruptedException {
+		List<Callable<Integer>> tasks = new ArrayList<Callable<Integer>>();
+		for (double[] weights: population) {
+			final WeightedBrain brain = new WeightedBrain(weights);
+			for (int k = 0; k < games; k++) {
+				final long gameSeed = seed*1000003 + (long)generation*games + k;
+				tasks.add(new Callable<Integer>() {
+					public Integer call() {
+						TetrisEngine engine = engines.get();
+						engine.playGame(brain, new Random(gameSeed), maxPieces);
+						return engine.getRowsCleared();
+					}
+				});
+			}
+		}
+
+		List<Future<Integer>> results = pool.invokeAll(tasks);
+		double[] fitness = new double[population.length];
+		try {
+			for (int i = 0; i < results.size(); i++) {
+				fitness[i / games] += results.get(i).get();
+			}
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		for (int i = 0; i < fitness.length; i++) fitness[i] /= games;
+		return fitness;
+	}
+
+	/*
+	 Builds the next generation: the ELITE best unchanged, then
+	 children of tournament-picked parents.
+	 */
+	private double[][] nextGeneration(double[][] population, double[] fitness, Integer[] order, Random random) {
+		double[][] next = new double[population.length][];
+		int i = 0;
+		for (; i < Math.min(ELITE, population.length); i++) {
+			next[i] = population[order[i]];
+		}
+		for (; i < next.length; i++) {
+			double[] a = population[tournament(fitness, random)];
+			double[] b = population[tournament(fitness, random)];
+			double[] child = new double[a.length];
+			for (int j = 0; j < child.length; j++) {
+				double t = random.nextDouble();
+				child[j] = t*a[j] + (1-t)*b[j];
+				if (random.nextDouble() < MUTATION_RATE) child[j] += random.nextGaussian() * MUTATION_SIZE;
+			}
+			next[i] = normalize(child);
+		}
+		return next;
+	}
+
+	/*
+	 Returns the index of the fittest of TOURNAMENT random candidates.
+	 */
+	private static int tournament(double[] fitness, Random random) {
+		int best = random.nextInt(fitness.length);
+		for (int i = 1; i < TOURNAMENT; i++) {
+			int j = random.nextInt(fitness.length);
+			if (fitness[j] > fitness[best]) best = j;
+		}
+		return best;
+	}
+
+	/*
+	 Returns the candidate indexes, fittest first (earlier index wins ties).
+	 */
+	private static Integer[] rank(final double[] fitness) {
+		Integer[] order = new Integer[fitness.length];
+		for (int i = 0; i < order.length; i++) order[i] = i;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(fitness[b], fitness[a]);
+			}
+		});
+		return order;
+	}
+
+	/*
+	 Scales the weights to unit length -- only their ratios matter
+	 to the brain, and this keeps mutations the same relative size.
+	 */
+	private static double[] normalize(double[] w) {
+		double sum = 0;
+		for (double x: w) sum += x*x;
+		double length = Math.sqrt(sum);
+		if (length > 0) {
+			for (int i = 0; i < w.length; i++) w[i] /= length;
+		}
+		return w;
+	}
+
+	private static double mean(double[] values) {
+		double sum = 0;
+		for (double v: values) sum += v;
+		return sum / values.length;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int generations = (args.length > 0) ? Integer.parseInt(args[0]) : 50;
+		int size = (args.length > 1) ? Integer.parseInt(args[1]) : 24;
+		int games = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+		long seed = (args.length > 3) ? Long.parseLong(args[3]) : 0;
+		int maxPieces = (args.length > 4) ? Integer.parseInt(args[4]) : 2000;
+		int threads = (args.length > 5) ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+		String fileName = (args.length > 6) ? args[6] : WeightedBrain.WEIGHTS_FILE;
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			long start = System.nanoTime();
+			BrainTuner tuner = new BrainTuner(games, maxPieces, seed, pool);
+			tuner.setLog(System.out);
+			double[] best = tuner.run(generations, size, fileName);
+			System.out.printf("best %s saved in %s, %.1f seconds on %d threads%n",
+					Arrays.toString(best), fileName, (System.nanoTime() - start) / 1e9, threads);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+}
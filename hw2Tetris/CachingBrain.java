@@ -0,0 +1,193 @@
+// CachingBrain.java
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ Wraps another brain and remembers its best moves, keyed by the
+ shape of the board's top surface: the height differences between
+ adjacent columns, clipped to -DIFF_LIMIT..DIFF_LIMIT, plus the piece
+ (and preview piece, if any). In long games the same surfaces come up
+ again and again, and then bestMove() is a hash lookup instead of a search.
+ A cached move keeps its piece rotation and x; its y is worked out
+ again with dropHeight() for the board at hand, and its score is the
+ one the wrapped brain gave when the move was cached.
+
+ The cache is bypassed, and the wrapped brain asked directly, when the
+ surface does not tell the whole story: when there is a hole at or above
+ the lowest column top (holes further down are out of reach, and add
+ the same amount to every play's rating), when the stack is so high
+ that limitHeight might rule out a play, or when the board is too wide
+ for the key. Deep wells and tall steps are clipped, so a cached move
+ is a good play but may not be exactly the wrapped brain's choice.
+
+ The cache holds at most "capacity" moves and drops the least
+ recently used one when full. Like the other brains, a CachingBrain
+ is for one thread at a time.
+*/
+public class CachingBrain implements PreviewBrain {
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	// bits per height difference in the key, which holds -DIFF_LIMIT..DIFF_LIMIT
+	private static final int DIFF_BITS = 3;
+	private static final int DIFF_LIMIT = (1 << (DIFF_BITS-1)) - 1;
+	// bits for each piece in the key: id and rotation, plus one for "no piece"
+	private static final int PIECE_BITS = 6;
+
+	private final Brain brain;
+	private final Map<Long, Brain.Move> cache;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long bypasses;
+
+	/**
+	 Caches the moves of a DefaultBrain, so HeadlessTetris can load it by name.
+	*/
+	public CachingBrain() {
+		this(new DefaultBrain(), DEFAULT_CAPACITY);
+	}
+
+	/**
+	 Caches up to capacity moves of the given brain.
+	*/
+	public CachingBrain(Brain brain, final int capacity) {
+		this.brain = brain;
+		cache = new LinkedHashMap<Long, Brain.Move>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Brain.Move> eldest) {
+				if (size() <= capacity) return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+		return bestMove(board, piece, null, limitHeight, move);
+	}
+
+	/**
+	 Looks the move up, or asks the wrapped brain and remembers its answer.
+	 The preview piece is passed on only if the wrapped brain is a PreviewBrain.
+	*/
+	public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move) {
+		if (!(brain instanceof PreviewBrain)) nextPiece = null;
+
+		long key = surfaceKey(board, piece, nextPiece, limitHeight);
+		if (key < 0) {
+			bypasses++;
+			return search(board, piece, nextPiece, limitHeight, move);
+		}
+
+		Brain.Move cached = cache.get(key);
+		if (cached != null) {
+			hits++;
+			if (move==null) move = new Brain.Move();
+			move.piece = cached.piece;
+			move.x = cached.x;
+			move.y = board.dropHeight(cached.piece, cached.x);
+			move.score = cached.score;
+			return(move);
+		}
+
+		misses++;
+		move = search(board, piece, nextPiece, limitHeight, move);
+		if (move != null) {
+			Brain.Move copy = new Brain.Move();
+			copy.piece = move.piece;
+			copy.x = move.x;
+			copy.y = move.y;
+			copy.score = move.score;
+			cache.put(key, copy);
+		}
+		return(move);
+	}
+
+	private Brain.Move search(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move) {
+		if (nextPiece != null) return ((PreviewBrain)brain).bestMove(board, piece, nextPiece, limitHeight, move);
+		return brain.bestMove(board, piece, limitHeight, move);
+	}
+
+	/*
+	 Returns the cache key for the board and pieces, or -1 if
+	 the cache must not be used for them (see the class comment).
+	 */
+	private long surfaceKey(Board board, Piece piece, Piece nextPiece, int limitHeight) {
+		int width = board.getWidth();
+		if (pieceKey(piece) >= (1 << PIECE_BITS) || pieceKey(nextPiece) >= (1 << PIECE_BITS)) return -1;
+		if ((width-1)*DIFF_BITS + 2*PIECE_BITS > 63) return -1;
+		if (board.getMaxHeight() + Math.max(piece.getWidth(), piece.getHeight()) > limitHeight) return -1;
+
+		long key = 0;
+		int min = board.getColumnHeight(0);
+		for (int x = 1; x < width; x++) {
+			int diff = board.getColumnHeight(x) - board.getColumnHeight(x-1);
+			diff = Math.max(-DIFF_LIMIT, Math.min(DIFF_LIMIT, diff));
+			key = (key << DIFF_BITS) | (diff + DIFF_LIMIT);
+			min = Math.min(min, board.getColumnHeight(x));
+		}
+		if (board.getHoles() > 0 && !solidAbove(board, min)) return -1;
+
+		key = (key << PIECE_BITS) | pieceKey(piece);
+		key = (key << PIECE_BITS) | pieceKey(nextPiece);
+		return key;
+	}
+
+	/*
+	 True if every column is solid from row min up to its top, i.e.
+	 the rows from min up hold exactly as many blocks as the heights say.
+	 */
+	private static boolean solidAbove(Board board, int min) {
+		int blocks = 0;
+		for (int y = min; y < board.getMaxHeight(); y++) {
+			blocks += board.getRowWidth(y);
+		}
+		return blocks == board.getAggregateHeight() - min*board.getWidth();
+	}
+
+	// 0 for no piece, too big for the key if the piece has no id
+	private static int pieceKey(Piece piece) {
+		if (piece == null) return 0;
+		if (piece.getId() < 0) return 1 << PIECE_BITS;
+		return 1 + piece.getId()*4 + piece.getRotationIndex();
+	}
+
+	/**
+	 Empties the cache; the counters are kept.
+	*/
+	public void clear() {
+		cache.clear();
+	}
+
+	public int size() {
+		return cache.size();
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 Returns how many calls skipped the cache because the board or
+	 pieces did not qualify.
+	*/
+	public long getBypasses() {
+		return bypasses;
+	}
+
+	@Override
+	public String toString() {
+		return "CachingBrain(" + brain.getClass().getName() + "): " + hits + " hits, " + misses + " misses, "
+				+ evictions + " evictions, " + bypasses + " bypasses, " + cache.size() + " cached";
+	}
+}
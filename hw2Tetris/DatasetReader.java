@@ -0,0 +1,208 @@
+// DatasetReader.java
+
+import java.io.*;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+/**
+ Reads the datasets written by DatasetWriter. The file is mapped into
+ memory and each record is read in place, straight from the mapping:
+ nothing is copied or parsed up front and no Board is built, so
+ iterating millions of records costs little more than touching their
+ bytes. Record i is found by its offset, so records can be read in any
+ order, and since the reads never move the buffers' positions, one
+ reader may be shared by several threads.
+
+ Typical client code looks like...
+ <pre>
+ DatasetReader reader = new DatasetReader(Paths.get("moves.dataset"));
+ for (long i = 0; i < reader.getCount(); i++) {
+ 	long bottom = reader.getRow(i, 0);		// bit x is block (x, 0)
+ 	int x = reader.getX(i);
+ 	...
+ }
+ reader.close();
+ </pre>
+ A mapping holds at most 2GB, so a bigger file is mapped in several
+ pieces, each a whole number of records.
+*/
+public class DatasetReader implements Closeable {
+	private final FileChannel channel;
+	private final MappedByteBuffer[] maps;
+	private final long perMap;		// records in each mapping
+	private final int width;
+	private final int height;
+	private final int rowBytes;
+	private final int recordSize;
+	private final long count;
+	private final Piece[] byKey;	// piece for each id*4 + rotation
+
+	/**
+	 Maps the dataset at the given path, checking its header.
+	 A partly written last record is ignored.
+	*/
+	public DatasetReader(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		try {
+			long size = channel.size();
+			if (size < DatasetWriter.HEADER_SIZE) throw new IOException("not a dataset");
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, DatasetWriter.HEADER_SIZE);
+			header.order(ByteOrder.LITTLE_ENDIAN);
+			if (header.getInt(0) != DatasetWriter.MAGIC) throw new IOException("not a dataset");
+			int version = header.getInt(4);
+			if (version != DatasetWriter.VERSION) throw new IOException("unknown dataset version " + version);
+			width = header.getInt(8);
+			height = header.getInt(12);
+			if (width < 1 || width > 64 || height < 1 || height > 255) {
+				throw new IOException("bad board size " + width + "x" + height);
+			}
+			rowBytes = (width + 7) / 8;
+			recordSize = DatasetWriter.recordSize(width, height);
+			count = (size - DatasetWriter.HEADER_SIZE) / recordSize;
+
+			perMap = Integer.MAX_VALUE / recordSize;
+			maps = new MappedByteBuffer[(int) ((count + perMap - 1) / perMap)];
+			for (int m = 0; m < maps.length; m++) {
+				long first = m * perMap;
+				long records = Math.min(perMap, count - first);
+				maps[m] = channel.map(FileChannel.MapMode.READ_ONLY,
+						DatasetWriter.HEADER_SIZE + first * recordSize, records * recordSize);
+				maps[m].order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+		catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		Piece[] roots = Piece.getPieces();
+		byKey = new Piece[roots.length * 4];
+		for (Piece root: roots) {
+			Piece p = root;
+			do {
+				byKey[p.getId()*4 + p.getRotationIndex()] = p;
+				p = p.fastRotation();
+			} while (p != root);
+		}
+	}
+
+	/**
+	 Returns the number of records.
+	*/
+	public long getCount() {
+		return count;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 Returns the piece record i was to play, as one of Piece.getPieces()
+	 or its rotations.
+	*/
+	public Piece getPiece(long i) {
+		return piece(map(i).get(offset(i)));
+	}
+
+	/**
+	 Returns the rotation of the piece that record i played.
+	*/
+	public Piece getMovePiece(long i) {
+		return piece(map(i).get(offset(i) + 1));
+	}
+
+	public int getX(long i) {
+		return map(i).get(offset(i) + 2) & 0xFF;
+	}
+
+	public int getY(long i) {
+		return map(i).get(offset(i) + 3) & 0xFF;
+	}
+
+	public float getScore(long i) {
+		return map(i).getFloat(offset(i) + 4);
+	}
+
+	/**
+	 Returns the height of column x of record i's board.
+	*/
+	public int getColumnHeight(long i, int x) {
+		return map(i).get(offset(i) + DatasetWriter.HEIGHTS + x) & 0xFF;
+	}
+
+	/**
+	 Returns row y of record i's board as a bitmask, bit x set
+	 if block (x, y) is filled.
+	*/
+	public long getRow(long i, int y) {
+		MappedByteBuffer map = map(i);
+		int at = offset(i) + DatasetWriter.HEIGHTS + width + y*rowBytes;
+		long bits = 0;
+		for (int b = 0; b < rowBytes; b++) {
+			bits |= (map.get(at + b) & 0xFFL) << (b*8);
+		}
+		return bits;
+	}
+
+	/**
+	 Returns true if block (x, y) of record i's board is filled.
+	*/
+	public boolean getGrid(long i, int x, int y) {
+		return (getRow(i, y) & (1L << x)) != 0;
+	}
+
+	/**
+	 Closes the file. Java cannot unmap a file, so the mappings
+	 go when the reader is garbage collected.
+	*/
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private MappedByteBuffer map(long i) {
+		if (i < 0 || i >= count) throw new IndexOutOfBoundsException("record " + i + " of " + count);
+		return maps[(int) (i / perMap)];
+	}
+
+	private int offset(long i) {
+		return (int) (i % perMap) * recordSize;
+	}
+
+	private Piece piece(byte key) {
+		int k = key & 0xFF;
+		return (k < byKey.length) ? byKey[k] : null;
+	}
+
+
+	/*
+	 Usage: java DatasetReader file
+	 Scans every record and prints what it found and how fast.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: java DatasetReader file");
+			System.exit(2);
+		}
+		DatasetReader reader = new DatasetReader(Paths.get(args[0]));
+		long start = System.nanoTime();
+		long blocks = 0;
+		double score = 0;
+		for (long i = 0; i < reader.getCount(); i++) {
+			for (int y = 0; y < reader.getHeight(); y++) blocks += Long.bitCount(reader.getRow(i, y));
+			score += reader.getScore(i);
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		reader.close();
+		long n = Math.max(1, reader.getCount());
+		System.out.printf("%d records of %dx%d boards, %.1f blocks and score %.2f per record%n",
+				reader.getCount(), reader.getWidth(), reader.getHeight(), (double) blocks / n, score / n);
+		System.out.printf("%.3f seconds, %.0f records/sec%n", seconds, reader.getCount() / seconds);
+	}
+}
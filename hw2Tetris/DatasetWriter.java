@@ -0,0 +1,192 @@
+// DatasetWriter.java
+
+import java.io.*;
+import java.util.Random;
+
+/**
+ Writes training datasets of (board, piece, chosen move, score)
+ records, e.g. every move a brain makes in many games, in a compact
+ binary form that DatasetReader maps into memory and reads in place.
+ Every record has the same size, so record i is at a known offset and
+ a reader can jump to it or split the file between threads.
+
+ The format, all little endian:
+ <pre>
+ MAGIC VERSION width height			4 ints, once, at the start of the file
+ record...							recordSize(width, height) bytes each
+ </pre>
+ and each record is
+ <pre>
+ byte	piece			the piece to play, as id*4 + rotation (as in ReplayRecorder)
+ byte	move piece		the rotation played, the same way
+ byte	x, y			where it was played
+ float	score			the score given with it, e.g. the brain's rating
+ byte	heights[width]	the column heights of the board
+ rows[height]			each row a bitmask, bit x = block x, in (width+7)/8 bytes
+ </pre>
+ so a standard 10x24 board takes 66 bytes, where its toString()
+ picture takes over 300. Boards are limited to 64 columns and 255
+ rows, and pieces to those of Piece.getPieces().
+*/
+public class DatasetWriter {
+	// the file format, shared with DatasetReader
+	static final int MAGIC = 0x53444254;	// "TBDS"
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 16;
+	static final int HEIGHTS = 8;			// offset of the heights in a record
+
+	private final OutputStream out;
+	private final int width;
+	private final int height;
+	private final int rowBytes;
+	private final byte[] record;
+	private long count;
+
+	/**
+	 Creates a writer of records of boards of the given size onto the
+	 stream, writing the header at once.
+	*/
+	public DatasetWriter(OutputStream out, int width, int height) throws IOException {
+		if (width < 1 || width > 64 || height < 1 || height > 255) {
+			throw new IllegalArgumentException("boards up to 64x255 only: " + width + "x" + height);
+		}
+		this.out = new BufferedOutputStream(out, 1 << 16);
+		this.width = width;
+		this.height = height;
+		rowBytes = (width + 7) / 8;
+		record = new byte[recordSize(width, height)];
+
+		byte[] header = new byte[HEADER_SIZE];
+		putInt(header, 0, MAGIC);
+		putInt(header, 4, VERSION);
+		putInt(header, 8, width);
+		putInt(header, 12, height);
+		this.out.write(header);
+	}
+
+	/**
+	 Returns the size in bytes of a record of a board of the given size.
+	*/
+	public static int recordSize(int width, int height) {
+		return HEIGHTS + width + height * ((width + 7) / 8);
+	}
+
+	/**
+	 Writes a record: the board as it was before the move (in the
+	 committed state), the piece to play, the move chosen and a score.
+	*/
+	public void write(Board board, Piece piece, Brain.Move move, double score) throws IOException {
+		if (board.getWidth() != width || board.getHeight() != height) {
+			throw new IllegalArgumentException("board size differs from the dataset's");
+		}
+		if (move.x < 0 || move.x >= width || move.y < 0 || move.y >= height) {
+			throw new IllegalArgumentException("move " + move.x + "," + move.y + " is off the board");
+		}
+		record[0] = (byte) key(piece);
+		record[1] = (byte) key(move.piece);
+		record[2] = (byte) move.x;
+		record[3] = (byte) move.y;
+		putInt(record, 4, Float.floatToIntBits((float) score));
+		for (int x = 0; x < width; x++) {
+			record[HEIGHTS + x] = (byte) board.getColumnHeight(x);
+		}
+
+		// the rows above the stack are all zero
+		int rows = HEIGHTS + width;
+		int used = board.getMaxHeight();
+		for (int y = 0; y < height; y++) {
+			long bits = (y < used) ? board.getRowWord(y, 0) : 0L;
+			for (int b = 0; b < rowBytes; b++) {
+				record[rows + y*rowBytes + b] = (byte) (bits >>> (b*8));
+			}
+		}
+		out.write(record);
+		count++;
+	}
+
+	/**
+	 Returns the number of records written.
+	*/
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 Flushes and closes the dataset.
+	*/
+	public void close() throws IOException {
+		out.close();
+	}
+
+	/*
+	 The piece's byte in a record. Loaded pieces have no id (see
+	 Piece.getId()), so they cannot be told apart from the standard
+	 ones in a dataset and are refused, as is a key too big for a byte.
+	 */
+	private static int key(Piece piece) {
+		if (piece.getId() < 0) throw new IllegalArgumentException("only pieces from Piece.getPieces() can be written");
+		int key = piece.getId()*4 + piece.getRotationIndex();
+		if (key > 0xFF) throw new IllegalArgumentException("piece key " + key + " does not fit in a byte");
+		return key;
+	}
+
+	private static void putInt(byte[] bytes, int offset, int value) {
+		bytes[offset] = (byte) value;
+		bytes[offset+1] = (byte) (value >>> 8);
+		bytes[offset+2] = (byte) (value >>> 16);
+		bytes[offset+3] = (byte) (value >>> 24);
+	}
+
+
+	/**
+	 Writes a record for every move the brain makes, with its rating
+	 as the score. Only plain bestMove() calls are seen, so a preview
+	 brain plays without its preview here.
+	*/
+	public Brain record(final Brain brain) {
+		return new Brain() {
+			public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+				Brain.Move best = brain.bestMove(board, piece, limitHeight, move);
+				if (best != null) {
+					try {
+						write(board, piece, best, best.score);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				}
+				return best;
+			}
+		};
+	}
+
+
+	/*
+	 Usage: java DatasetWriter file games seed maxPieces [brainClass]
+	 Writes every move of the brain's games, game g using Random(seed + g).
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("usage: java DatasetWriter file games seed maxPieces [brainClass]");
+			System.exit(2);
+		}
+		int games = Integer.parseInt(args[1]);
+		long seed = Long.parseLong(args[2]);
+		int maxPieces = Integer.parseInt(args[3]);
+		String brainName = (args.length > 4) ? args[4] : "DefaultBrain";
+		Brain brain = (Brain) Class.forName(brainName).getDeclaredConstructor().newInstance();
+
+		TetrisEngine engine = new TetrisEngine();
+		Board board = engine.getBoard();
+		DatasetWriter writer = new DatasetWriter(new FileOutputStream(args[0]), board.getWidth(), board.getHeight());
+		Brain recorded = writer.record(brain);
+		long start = System.nanoTime();
+		for (int g = 0; g < games; g++) {
+			engine.playGame(recorded, new Random(seed + g), maxPieces);
+		}
+		writer.close();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.printf("%d records, %d bytes each, in %.2f seconds%n",
+				writer.getCount(), recordSize(board.getWidth(), board.getHeight()), seconds);
+	}
+}
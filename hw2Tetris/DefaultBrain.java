@@ -7,7 +7,8 @@
  and rotations to play a particular piece (there are only
  around 10-30 ways to play a piece).
  
- For each play, it uses the rateBoard() message to rate how
+ For each play, it uses the rateMove() message (which by
+ default just calls rateBoard()) to rate how
  good the resulting board is and it just remembers the
  play with the lowest score. Undo() is used to back-out
  each play before trying the next. To experiment with writing your own
@@ -29,6 +30,7 @@ public class DefaultBrain implements Brain {
         int bestY = 0;
         Piece bestPiece = null;
         Piece current = piece;
+        int tried = 0;
         
         board.commit();
         
@@ -45,7 +47,8 @@ public class DefaultBrain implements Brain {
                     if (result <= Board.PLACE_ROW_FILLED) {
                         if (result == Board.PLACE_ROW_FILLED) board.clearRows();
                         
-                        double score = rateBoard(board);
+                        double score = rateMove(board, current, x, y);
+                        tried++;
                         
                         if (score<bestScore) {
                             bestScore = score;
@@ -62,6 +65,7 @@ public class DefaultBrain implements Brain {
             current = current.fastRotation();
             if (current == piece) break;    // break if back to original rotation
         }
+        if (TetrisMetrics.ENABLED) TetrisMetrics.candidates(tried);
         
         if (bestPiece == null) return(null);    // could not find a play at all!
         else {
@@ -74,34 +78,33 @@ public class DefaultBrain implements Brain {
     }
     
     
+    /**
+     Rates the board left by playing the piece at x, y (after any
+     full rows were cleared) -- larger numbers for worse plays.
+     bestMove() calls this for each play. This version just calls
+     rateBoard(); override it to also look at the play itself,
+     e.g. its landing height or Board.getLastRowsCleared().
+    */
+    public double rateMove(Board board, Piece piece, int x, int y) {
+        return rateBoard(board);
+    }
+    
+    
     /*
      A simple brain function.
      Given a board, produce a number that rates
      that board position -- larger numbers for worse boards.
      This version just counts the height
      and the number of "holes" in the board.
+     The board keeps both counts up to date itself,
+     so this is O(1) rather than a scan of every column.
     */
     public double rateBoard(Board board) {
         final int width = board.getWidth();
         final int maxHeight = board.getMaxHeight();
         
-        int sumHeight = 0;
-        int holes = 0;
-        
-        // Count the holes, and sum up the heights
-        for (int x=0; x<width; x++) {
-            final int colHeight = board.getColumnHeight(x);
-            sumHeight += colHeight;
-            
-            int y = colHeight - 2;    // addr of first possible hole
-            
-            while (y>=0) {
-                if  (!board.getGrid(x,y)) {
-                    holes++;
-                }
-                y--;
-            }
-        }
+        int sumHeight = board.getAggregateHeight();
+        int holes = board.getHoles();
         
         double avgHeight = ((double)sumHeight)/width;
         
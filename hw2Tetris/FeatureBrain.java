@@ -0,0 +1,57 @@
+// FeatureBrain.java
+
+/**
+ A DefaultBrain that rates each play with a FeatureScorer over the
+ BoardFeatures of the result, computing only the features the scorer
+ asks for. Since it overrides rateMove(), it can use features of the
+ play itself, such as the landing height and the eroded cells.
+
+ The default scorer uses Pierre Dellacherie's well known weights:
+ landing height, row and column transitions, holes (times 4) and
+ wells count against a play, and eroded cells for it.
+*/
+public class FeatureBrain extends DefaultBrain {
+	private final FeatureScorer scorer;
+	private final BoardFeatures evaluator;
+	private final double[] features = new double[BoardFeatures.COUNT];
+
+	/**
+	 Creates a brain with Dellacherie's weights.
+	*/
+	public FeatureBrain() {
+		this(dellacherie());
+	}
+
+	public FeatureBrain(FeatureScorer scorer) {
+		this.scorer = scorer;
+		evaluator = new BoardFeatures(scorer.getFeatureMask());
+	}
+
+	/**
+	 Returns a scorer with Dellacherie's weights.
+	*/
+	public static LinearScorer dellacherie() {
+		double[] w = new double[BoardFeatures.COUNT];
+		w[BoardFeatures.LANDING_HEIGHT] = 1;
+		w[BoardFeatures.ERODED_CELLS] = -1;
+		w[BoardFeatures.ROW_TRANSITIONS] = 1;
+		w[BoardFeatures.COLUMN_TRANSITIONS] = 1;
+		w[BoardFeatures.HOLES] = 4;
+		w[BoardFeatures.WELLS] = 1;
+		return new LinearScorer(w);
+	}
+
+	@Override
+	public double rateMove(Board board, Piece piece, int x, int y) {
+		evaluator.evaluate(board, piece, x, y, features);
+		return scorer.score(features);
+	}
+
+	/**
+	 Rates the board alone, with the play features at 0.
+	*/
+	@Override
+	public double rateBoard(Board board) {
+		return rateMove(board, null, 0, 0);
+	}
+}
@@ -0,0 +1,15 @@
+// FeatureScorer.java -- turns a BoardFeatures vector into a score
+
+public interface FeatureScorer {
+    /**
+     Returns the BoardFeatures mask of the features score() looks at,
+     so the evaluator can skip the others.
+    */
+    public int getFeatureMask();
+    
+    /**
+     Rates a board from its feature values (indexed by the BoardFeatures
+     constants) -- larger numbers for worse boards, as with rateBoard().
+    */
+    public double score(double[] features);
+}
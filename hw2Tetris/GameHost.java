@@ -0,0 +1,290 @@
+// GameHost.java
+/*
+ Runs many headless games at once on a few threads, each game at its
+ own pace -- for bot leagues, where tens of thousands of games share a
+ machine and a thread (or a Swing Timer) per game would not do.
+
+ A game is a TetrisEngine with its own Random piece stream and a Brain.
+ Each tick of a game drops one piece with TetrisEngine.dropPiece(), and
+ a game ticks every tickNanos (0 for as fast as the threads allow).
+ All the games wait in one DelayQueue, ordered by when their next tick
+ is due (and then by when they were queued); each scheduler thread
+ takes the game due first, plays one tick and puts it back due a
+ period later, and never earlier than the end of that tick. No game
+ plays two ticks while another is overdue, so a slow brain or a fast
+ game cannot starve the rest -- unthrottled games take turns a tick
+ at a time. A game that has fallen behind by more than a period is
+ not allowed to catch up in a burst -- its next tick is just a period
+ from now -- and the lag is counted.
+
+ A tick that throws (a bad brain, say) ends its game as failed; the
+ exception is kept in the Game and the thread goes on with the others.
+
+ A game is only ever in the queue once, so only one thread plays it at
+ a time and engines need not be thread safe; a Brain shared by several
+ games must be (DefaultBrain is, having no state).
+
+ Usage: java GameHost games threads ticksPerSecond maxPieces [brainClass]
+ e.g.   java GameHost 20000 4 10 200 DefaultBrain
+*/
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class GameHost {
+	private final DelayQueue<Game> queue = new DelayQueue<Game>();
+	private final Thread[] threads;
+
+	private final LongAdder ticks = new LongAdder();
+	private final LongAdder rows = new LongAdder();
+	private final LongAdder lateTicks = new LongAdder();
+	private final LongAdder lagNanos = new LongAdder();
+	private final LongAdder busyNanos = new LongAdder();
+	private final AtomicLong queued = new AtomicLong();	// tiebreak for games due at once
+	private int running;		// games added and not yet over, guarded by this
+	private int finished;		// guarded by this, failed games included
+	private int failed;			// guarded by this
+	private long startNanos;
+
+	/**
+	 Creates a host with the given number of scheduler threads
+	 (daemons, so they do not keep the JVM up); start() starts them.
+	*/
+	public GameHost(int threadCount) {
+		threads = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					schedule();
+				}
+			}, "game-host-" + i);
+			threads[i].setDaemon(true);
+		}
+	}
+
+	/**
+	 Adds a game of at most maxPieces pieces (0 for no limit) for the
+	 brain, ticking every tickNanos. Games may be added before or
+	 after start(); a game's first tick is due at once.
+	*/
+	public Game addGame(Brain brain, Random random, int maxPieces, long tickNanos) {
+		Game game = new Game(brain, tickNanos);
+		game.engine.setPieceLimit(maxPieces);
+		game.engine.startGame(random);
+		game.due = System.nanoTime();
+		synchronized (this) {
+			running++;
+		}
+		game.sequence = queued.getAndIncrement();
+		queue.add(game);
+		return game;
+	}
+
+	/**
+	 Starts the scheduler threads.
+	*/
+	public void start() {
+		startNanos = System.nanoTime();
+		for (Thread thread: threads) thread.start();
+	}
+
+	/**
+	 Stops the scheduler threads; games still running stay where they are.
+	*/
+	public void stop() {
+		for (Thread thread: threads) thread.interrupt();
+	}
+
+	/**
+	 Waits until every game added so far is over, or the timeout
+	 runs out; returns true if they are all over.
+	*/
+	public synchronized boolean awaitFinished(long timeout, TimeUnit unit) throws InterruptedException {
+		long end = System.nanoTime() + unit.toNanos(timeout);
+		while (running > 0) {
+			long left = end - System.nanoTime();
+			if (left <= 0) return false;
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return true;
+	}
+
+	/*
+	 A scheduler thread: plays the game due first, one tick at a time.
+	 */
+	private void schedule() {
+		try {
+			while (true) {
+				Game game = queue.take();
+				long now = System.nanoTime();
+				long lag = now - game.due;
+				if (game.tickNanos > 0 && lag > game.tickNanos) {
+					lateTicks.increment();
+					lagNanos.add(lag);
+					game.due = now;		// no catching up in a burst
+				}
+
+				try {
+					game.engine.dropPiece(game.brain, game.move);
+				}
+				catch (RuntimeException e) {
+					game.failure = e;
+				}
+				game.ticks++;
+				ticks.increment();
+				long end = System.nanoTime();
+				busyNanos.add(end - now);
+
+				if (game.failure == null && game.engine.isGameOn()) {
+					game.due = Math.max(game.due + game.tickNanos, end);
+					game.sequence = queued.getAndIncrement();
+					queue.add(game);
+				}
+				else {
+					if (game.failure == null) rows.add(game.engine.getRowsCleared());
+					synchronized (this) {
+						running--;
+						finished++;
+						if (game.failure != null) failed++;
+						if (running == 0) notifyAll();
+					}
+				}
+			}
+		}
+		catch (InterruptedException e) {
+			// stop() -- just end the thread
+		}
+	}
+
+
+	/**
+	 Returns the ticks (pieces dropped) in all games so far.
+	*/
+	public long getTicks() {
+		return ticks.sum();
+	}
+
+	/**
+	 Returns the rows cleared in the games that are over.
+	*/
+	public long getRowsCleared() {
+		return rows.sum();
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public synchronized int getFinished() {
+		return finished;
+	}
+
+	/**
+	 Returns the games ended by an exception; see Game.getFailure().
+	*/
+	public synchronized int getFailed() {
+		return failed;
+	}
+
+	/**
+	 Returns the ticks per second since start().
+	*/
+	public double getTicksPerSecond() {
+		double seconds = (System.nanoTime() - startNanos) / 1e9;
+		return (seconds > 0) ? ticks.sum() / seconds : 0;
+	}
+
+	/**
+	 Returns the ticks that came more than a period late, a sign
+	 that the host has more games than its threads can keep up with.
+	*/
+	public long getLateTicks() {
+		return lateTicks.sum();
+	}
+
+	/**
+	 Returns a one-line summary of the counters.
+	*/
+	public String report() {
+		long t = ticks.sum();
+		long late = lateTicks.sum();
+		return String.format("%d running, %d over, %d failed, %d ticks, %.0f ticks/sec, %.1f us/tick, %d late (%.2f ms mean lag), %d rows",
+				getRunning(), getFinished(), getFailed(), t, getTicksPerSecond(),
+				(t == 0) ? 0.0 : busyNanos.sum() / 1e3 / t,
+				late, (late == 0) ? 0.0 : lagNanos.sum() / 1e6 / late, rows.sum());
+	}
+
+
+	/**
+	 One hosted game: its engine, its brain and its schedule.
+	 The engine may be read once the game is over.
+	*/
+	public static class Game implements Delayed {
+		private final TetrisEngine engine = new TetrisEngine();
+		private final Brain brain;
+		private final Brain.Move move = new Brain.Move();
+		private final long tickNanos;
+		private long due;		// nanoTime of the next tick
+		private long sequence;	// when it was queued, among games due at once
+		private long ticks;
+		private volatile RuntimeException failure;
+
+		Game(Brain brain, long tickNanos) {
+			this.brain = brain;
+			this.tickNanos = tickNanos;
+		}
+
+		public TetrisEngine getEngine() {
+			return engine;
+		}
+
+		public long getTicks() {
+			return ticks;
+		}
+
+		/**
+		 Returns the exception that ended the game, or null.
+		*/
+		public RuntimeException getFailure() {
+			return failure;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed other) {
+			Game game = (Game)other;
+			long d = due - game.due;
+			if (d == 0) d = sequence - game.sequence;
+			return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+		}
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("usage: java GameHost games threads ticksPerSecond maxPieces [brainClass]");
+			System.exit(2);
+		}
+		int games = Integer.parseInt(args[0]);
+		int threadCount = Integer.parseInt(args[1]);
+		double rate = Double.parseDouble(args[2]);
+		int maxPieces = Integer.parseInt(args[3]);
+		String brainName = (args.length > 4) ? args[4] : "DefaultBrain";
+		Class<?> brainClass = Class.forName(brainName);
+		long tickNanos = (rate > 0) ? (long)(1e9 / rate) : 0;
+
+		GameHost host = new GameHost(threadCount);
+		for (int g = 0; g < games; g++) {
+			Brain brain = (Brain) brainClass.getDeclaredConstructor().newInstance();
+			host.addGame(brain, new Random(g), maxPieces, tickNanos);
+		}
+		host.start();
+		while (!host.awaitFinished(1, TimeUnit.SECONDS)) {
+			System.out.println(host.report());
+		}
+		System.out.println(host.report());
+	}
+}
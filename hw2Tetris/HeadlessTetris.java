@@ -0,0 +1,64 @@
+// HeadlessTetris.java
+/*
+ Plays Tetris games with a brain and no GUI, as fast as the CPU
+ allows, and prints how well and how fast the brain played.
+ Game g uses Random(seed + g), so a run can be repeated exactly --
+ handy for checking that a brain change did not change its play.
+
+ Usage: java HeadlessTetris [brainClass] [games] [seed] [maxPieces] [replayFile]
+ e.g.   java HeadlessTetris DefaultBrain 100 0 10000 default.replay
+ With a replayFile, the games are recorded there for Replayer.
+ With -Dtetris.metrics=true, the TetrisMetrics are printed at the end.
+ With -Dtetris.pieces=file, the games use the pieces read from the
+ file by Piece.loadPieces() instead of the standard 7; such games
+ cannot be recorded, since Replayer only knows the standard pieces.
+*/
+import java.io.FileOutputStream;
+import java.util.Random;
+
+public class HeadlessTetris {
+
+	public static void main(String[] args) throws Exception {
+		String brainName = (args.length > 0) ? args[0] : "DefaultBrain";
+		int games = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+		long seed = (args.length > 2) ? Long.parseLong(args[2]) : 0;
+		int maxPieces = (args.length > 3) ? Integer.parseInt(args[3]) : 10000;
+
+		Brain brain = (Brain) Class.forName(brainName).getDeclaredConstructor().newInstance();
+		String piecesFile = System.getProperty("tetris.pieces");
+		TetrisEngine engine = new TetrisEngine();
+		if (piecesFile != null) {
+			Piece[] pieces = Piece.loadPieces(piecesFile);
+			engine = new TetrisEngine(TetrisEngine.WIDTH, TetrisEngine.HEIGHT, pieces);
+			System.out.println(pieces.length + " pieces from " + piecesFile);
+			if (args.length > 4) throw new IllegalArgumentException("games with -Dtetris.pieces cannot be recorded");
+		}
+		ReplayRecorder recorder = null;
+		if (args.length > 4) {
+			recorder = new ReplayRecorder(engine, new FileOutputStream(args[4]), null);
+			engine.setListener(recorder);
+		}
+
+		long pieces = 0;
+		long rows = 0;
+		long score = 0;
+		long start = System.nanoTime();
+		for (int g = 0; g < games; g++) {
+			engine.playGame(brain, new Random(seed + g), maxPieces);
+			pieces += engine.getLanded();
+			rows += engine.getRowsCleared();
+			score += engine.getScore();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		if (recorder != null) recorder.close();
+
+		System.out.println(brainName + ": " + games + " games, seed " + seed + ", max " + maxPieces + " pieces");
+		System.out.println("pieces " + pieces + " (" + (pieces / games) + " per game)");
+		System.out.println("rows cleared " + rows + " (" + (rows / games) + " per game)");
+		System.out.println("score " + score + " (" + (score / games) + " per game)");
+		System.out.printf("%.2f seconds, %.1f games/sec, %.0f pieces/sec%n",
+				seconds, games / seconds, pieces / seconds);
+		if (brain instanceof CachingBrain) System.out.println(brain);
+		if (TetrisMetrics.ENABLED) System.out.print(TetrisMetrics.getInstance().dump());
+	}
+}
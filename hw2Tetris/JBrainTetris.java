@@ -1,242 +1,233 @@
+
 import java.awt.BorderLayout;
-import java.awt.Dimension;
-import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
-import java.util.Random;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.Box;
-import javax.swing.BoxLayout;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JComponent;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
-import javax.swing.JPanel;
-import javax.swing.JSlider;
 import javax.swing.UIManager;
-import javax.swing.event.ChangeEvent;
-import javax.swing.event.ChangeListener;
 
+/**
+ JTetris with a brain that can play the pieces.
+
+ The brain does not run on the Swing thread: as soon as a new piece
+ is added, a copy of the board is handed to a background brain
+ thread, and the next DOWN tick moves the piece to the brain's move
+ if it is ready (if not, the piece just falls and a later tick
+ tries again). An AnytimeBrain is given a deadline a little before
+ that tick, so even a slow search does not hold up the game, and
+ keys and painting never wait for the brain.
+*/
 public class JBrainTetris extends JTetris {
-	
+
 	protected JCheckBox brainButton;
+	protected JComboBox<String> brainChoice;
 	protected boolean brainMode = false;
-	private DefaultBrain defaultBrain;
-	private int checkCount;	// used to detect when the JTetris.count variable has changed to know that a new piece is in play 
-	
+	protected Brain brain;
+	private int checkCount;	// used to detect when the engine's piece count has changed to know that a new piece is in play
+
+	// the fraction of a tick an AnytimeBrain may search for
+	private static final double SEARCH_FRACTION = 0.75;
+
+	// the brain thread, and its search for the piece numbered pendingCount
+	private final ExecutorService brainThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "brain");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	private Future<Brain.Move> pending;
+	private int pendingCount;
+	private boolean brainFailed;	// a search threw this game, already reported
+
+	// the searches fill these in turn, so that the brain thread, which
+	// runs one search at a time, never writes the move the Swing thread reads
+	private final Brain.Move[] moves = { new Brain.Move(), new Brain.Move() };
+
 	JBrainTetris (int pixels) {
 		super(pixels);
-		defaultBrain = new DefaultBrain();
-		checkCount = count;
+		brain = new DefaultBrain();
+		checkCount = engine.getCount();
 	}
-	
-	private void enableButtons() {
-		startButton.setEnabled(!gameOn);
-		stopButton.setEnabled(gameOn);
-	}
-	
-	private void updateCounters() {
-		countLabel.setText("Pieces " + count);
-		scoreLabel.setText("Score " + score);
-	}
-	
-	
+
+
 	@Override
 	public void tick(int verb) {
-		if (!gameOn) return;
-		
-		if (currentPiece != null) {
-			board.undo();	// remove the piece from its old position
-		}
-		
-		// Sets the newXXX ivars
-		// if verb is DOWN and brainMode is on, then use brain to move first
-		
-		if (brainMode && verb == DOWN) {
-			//your code here
-			
-			if (checkCount < count) {
-				checkCount++;
-				board.undo();
-				int limitHeight = board.getHeight() - 4;
-				Brain.Move bestMove = defaultBrain.bestMove(board, currentPiece, limitHeight, null);
-				currentX = bestMove.x;
-				currentY = bestMove.y;
-				currentPiece = bestMove.piece;
+		if (!engine.isGameOn()) return;
+
+		// if verb is DOWN and brainMode is on, then use brain to move first:
+		// the brain's move for a new piece takes it straight to its best
+		// spot, and the DOWN tick then finds it cannot go further and lands it
+		if (brainMode && verb == DOWN && checkCount < engine.getCount()) {
+			if (pending == null || pendingCount != engine.getCount()) {
+				startSearch();
+			}
+			else if (pending.isDone()) {
+				checkCount = engine.getCount();
+				Brain.Move move = finishedMove();
+				if (move != null) engine.moveTo(move.piece, move.x, move.y);
 			}
 		}
-		
-		computeNewPosition(verb);
-		
-		// try out the new position (rolls back if it doesn't work)
-		int result = setCurrent(newPiece, newX, newY);
-		
-		// if row clearing is going to happen, draw the
-		// whole board so the green row shows up
-		if (result ==  Board.PLACE_ROW_FILLED) {
-			repaint();
-		}
-		
-
-		boolean failed = (result >= Board.PLACE_OUT_BOUNDS);
-		
-		// if it didn't work, put it back the way it was
-		if (failed) {
-			if (currentPiece != null) board.place(currentPiece, currentX, currentY);
-			repaintPiece(currentPiece, currentX, currentY);
+
+		super.tick(verb);
+	}
+
+
+	/**
+	 A new piece has been added, so start the brain on it right away.
+	*/
+	@Override
+	public void countersChanged() {
+		super.countersChanged();
+		if (brainMode && engine.isGameOn() && engine.getCurrentPiece() != null
+				&& pendingCount != engine.getCount()) {
+			startSearch();
 		}
-		
-		/*
-		 How to detect when a piece has landed:
-		 if this move hits something on its DOWN verb,
-		 and the previous verb was also DOWN (i.e. the player was not
-		 still moving it),	then the previous position must be the correct
-		 "landed" position, so we're done with the falling of this piece.
-		*/
-		if (failed && verb==DOWN && !moved) {	// it's landed
-		
-			int cleared = board.clearRows();
-			if (cleared > 0) {
-				// score goes up by 5, 10, 20, 40 for row clearing
-				// clearing 4 gets you a beep!
-				switch (cleared) {
-					case 1: score += 5;	 break;
-					case 2: score += 10;  break;
-					case 3: score += 20;  break;
-					case 4: score += 40; Toolkit.getDefaultToolkit().beep(); break;
-					default: score += 50;  // could happen with non-standard pieces
+	}
+
+
+	/*
+	 Hands a copy of the board and the current piece to the brain thread.
+	 The copy and the pieces are all the search sees, so the engine
+	 can go on changing its own board meanwhile.
+	 */
+	private void startSearch() {
+		if (pending != null) pending.cancel(true);
+
+		final Brain searcher = brain;
+		final Board board = engine.copyLandedBoard();
+		final Piece piece = engine.getCurrentPiece();
+		final Piece nextPiece = engine.getNextPiece();
+		final int limitHeight = engine.getLimitHeight();
+		final long deadline = System.nanoTime() + (long)(timer.getDelay() * SEARCH_FRACTION * 1e6);
+		final Brain.Move result = moves[engine.getCount() & 1];
+
+		pendingCount = engine.getCount();
+		pending = brainThread.submit(new Callable<Brain.Move>() {
+			public Brain.Move call() {
+				long start = TetrisMetrics.ENABLED ? System.nanoTime() : 0;
+				Brain.Move move;
+				if (searcher instanceof AnytimeBrain) {
+					move = ((AnytimeBrain)searcher).bestMove(board, piece, nextPiece, limitHeight, result, deadline);
 				}
-				updateCounters();
-				repaint();	// repaint to show the result of the row clearing
-			}
-			
-			
-			// if the board is too tall, we've lost
-			if (board.getMaxHeight() > board.getHeight() - TOP_SPACE) {
-				stopGame();
+				else if (searcher instanceof PreviewBrain) {
+					move = ((PreviewBrain)searcher).bestMove(board, piece, nextPiece, limitHeight, result);
+				}
+				else {
+					move = searcher.bestMove(board, piece, limitHeight, result);
+				}
+				if (TetrisMetrics.ENABLED) TetrisMetrics.move(System.nanoTime() - start);
+				return move;
 			}
-			// Otherwise add a new piece and keep playing
-			else {
-				addNewPiece();
+		});
+	}
+
+
+	/*
+	 Returns the move of the finished search, or null if the
+	 brain found no play or failed.
+	 */
+	private Brain.Move finishedMove() {
+		try {
+			return pending.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e) {
+			// say so once a game, then just let the pieces fall
+			if (!brainFailed) {
+				brainFailed = true;
+				System.err.println("Brain failed, pieces will fall unguided: " + e.getCause());
 			}
+			return null;
 		}
-		
-		// Note if the player made a successful non-DOWN move --
-		// used to detect if the piece has landed on the next tick()
-		moved = (!failed && verb!=DOWN);
 	}
-	
-	
+
+
 	@Override
 	public void startGame() {
-		// cheap way to reset the board state
-		board = new Board(WIDTH, HEIGHT + TOP_SPACE);
-		
-		// draw the new board state once
-		repaint();
-		
-		count = 0;
-		score = 0;
-		updateCounters();
-		gameOn = true;
-		
 		// Set mode based on checkbox at start of game
-		testMode = testButton.isSelected();
 		brainMode = brainButton.isSelected();
-		
-		if (testMode) random = new Random(0);	// same seq every time
-		else random = new Random(); // diff seq each game
-		
-		enableButtons();
-		timeLabel.setText(" ");
-		addNewPiece();
-		timer.start();
-		startTime = System.currentTimeMillis();
+		brain = createBrain((String)brainChoice.getSelectedItem());
+		checkCount = 0;
+		brainFailed = false;
+		if (pending != null) pending.cancel(true);
+		pending = null;
+		pendingCount = 0;
+
+		super.startGame();
 	}
-	
+
 	@Override
 	public JComponent createControlPanel() {
-		JPanel panel = new JPanel();
-		panel.setLayout(new BoxLayout(panel, BoxLayout.Y_AXIS));
-
-		// COUNT
-		countLabel = new JLabel("0");
-		panel.add(countLabel);
-		
-		// SCORE
-		scoreLabel = new JLabel("0");
-		panel.add(scoreLabel);
-		
-		// TIME 
-		timeLabel = new JLabel(" ");
-		panel.add(timeLabel);
-
-		panel.add(Box.createVerticalStrut(12));
-		
-		// START button
-		startButton = new JButton("Start");
-		panel.add(startButton);
-		startButton.addActionListener( new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				startGame();
-			}
-		});
-		
-		// STOP button
-		stopButton = new JButton("Stop");
-		panel.add(stopButton);
-		stopButton.addActionListener( new ActionListener() {
-			public void actionPerformed(ActionEvent e) {
-				stopGame();
-			}
-		});
-		
-		enableButtons();
-		
-		JPanel row = new JPanel();
-		
-		// SPEED slider
-		panel.add(Box.createVerticalStrut(12));
-		row.add(new JLabel("Speed:"));
-		speed = new JSlider(0, 200, 75);	// min, max, current
-		speed.setPreferredSize(new Dimension(100, 15));
-		
-		updateTimer();
-		row.add(speed);
-		
-		panel.add(row);
-		speed.addChangeListener( new ChangeListener() {
-			// when the slider changes, sync the timer to its value
-			public void stateChanged(ChangeEvent e) {
-				updateTimer();
-			}
-		});
-		
-		testButton = new JCheckBox("Test sequence");
-		panel.add(testButton);
-		
+		JComponent panel = super.createControlPanel();
+
 		// brain mode label
 		panel.add(new JLabel("Brain:"));
 		brainButton = new JCheckBox("Brain active");
-		panel.add(brainButton); 
-		
-		
+		panel.add(brainButton);
+		brainChoice = new JComboBox<String>(BRAIN_NAMES);
+		brainChoice.setMaximumSize(brainChoice.getPreferredSize());
+		panel.add(brainChoice);
+
+
 		return panel;
 	}
-	
-	public static JFrame createFrame(JTetris tetris) {		
+
+	// the brains offered by the brainChoice box
+	public static final String[] BRAIN_NAMES = { "Default", "Parallel", "Lookahead", "Weighted", "Features", "MCTS" };
+
+	/**
+	 Creates the brain named by one of the BRAIN_NAMES.
+	 "Weighted" reads the weights saved by BrainTuner, from the file
+	 named by the tetris.weights property or else WeightedBrain.WEIGHTS_FILE,
+	 and falls back to the default weights if there is no such file.
+	*/
+	public static Brain createBrain(String name) {
+		if ("Parallel".equals(name)) return new ParallelBrain();
+		if ("Lookahead".equals(name)) return new LookaheadBrain();
+		if ("Features".equals(name)) return new FeatureBrain();
+		if ("MCTS".equals(name)) return new MctsBrain();
+		if ("Weighted".equals(name)) {
+			String fileName = System.getProperty("tetris.weights", WeightedBrain.WEIGHTS_FILE);
+			try {
+				return WeightedBrain.load(fileName);
+			}
+			catch (IOException e) {
+				System.err.println("Could not load " + fileName + ", using default weights: " + e.getMessage());
+				return new WeightedBrain();
+			}
+		}
+		return new DefaultBrain();
+	}
+
+	public static JFrame createFrame(JTetris tetris) {
 		JFrame frame = new JFrame("Stanford Tetris with Brain");
 		JComponent container = (JComponent)frame.getContentPane();
 		container.setLayout(new BorderLayout());
 
 		// Install the passed in JTetris in the center.
 		container.add(tetris, BorderLayout.CENTER);
-		
+
 		// Create and install the panel of controls.
 		JComponent controls = tetris.createControlPanel();
 		container.add(controls, BorderLayout.EAST);
-		
+
 		// Add the quit button last so it's at the bottom
 		controls.add(Box.createVerticalStrut(12));
 		JButton quit = new JButton("Quit");
@@ -248,18 +239,18 @@ public class JBrainTetris extends JTetris {
 				System.exit(0);
 			}
 		});
-		
+
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 		frame.pack();
-		
+
 		return frame;
 	}
-	
+
 	public static void main(String[] args) {
 		try {
 			UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
 		} catch (Exception ignored) { }
-		
+
 		JTetris tetris = new JBrainTetris(16);
 		JFrame frame = JBrainTetris.createFrame(tetris);
 		frame.setVisible(true);
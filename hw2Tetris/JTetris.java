@@ -1,5 +1,8 @@
 // JTetris.java
 import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import javax.swing.*;
 
 import java.util.*;
@@ -25,64 +28,57 @@ import java.awt.Toolkit;
 
 /*
  Implementation notes:
- -The "currentPiece" points to a piece that is
- currently falling, or is null when there is no piece.
- -tick() moves the current piece
+ -The game itself -- the board, the falling piece, the
+ score and the rules -- lives in a TetrisEngine. JTetris is a view:
  -a timer object calls tick(DOWN) periodically
  -keystrokes call tick() with LEFT, RIGHT, etc.
- -Board.undo() is used to remove the piece from its
- old position and then Board.place() is used to install
- the piece in its new position.
+ -tick() passes the verb on to the engine
+ -the engine calls back through TetrisEngine.Listener
+ when something needs to be redrawn
+ -with DRAW_OPTIMIZE, the landed blocks are kept drawn in an
+ image that only changes when a piece lands (one piece drawn in)
+ or rows are cleared (redrawn from the board), and a tick repaints
+ just the rect around the old and new piece positions
 */
 
-public class JTetris extends JComponent {
+public class JTetris extends JComponent implements TetrisEngine.Listener {
 	// size of the board in blocks
-	public static final int WIDTH = 10;
-	public static final int HEIGHT = 20;
+	public static final int WIDTH = TetrisEngine.WIDTH;
+	public static final int HEIGHT = TetrisEngine.HEIGHT;
 	
 	// Extra blocks at the top for pieces to start.
 	// If a piece is sticking up into this area
 	// when it has landed -- game over!
-	public static final int TOP_SPACE = 4;
+	public static final int TOP_SPACE = TetrisEngine.TOP_SPACE;
 	
 	// When this is true, plays a fixed sequence of 100 pieces
 	protected boolean testMode = false;
 	public final int TEST_LIMIT = 100;
 	
 	// Is drawing optimized
-	// (default false, so debugging is easier)
-	protected boolean DRAW_OPTIMIZE = false;
+	// (set false to repaint and redraw the whole board every time,
+	// which is slow but easier to debug)
+	protected boolean DRAW_OPTIMIZE = true;
 	
-	// Board data structures
-	protected Board board;
-	protected Piece[] pieces;
+	// The game being shown
+	protected TetrisEngine engine;
 	
+	protected long startTime;	// used to measure elapsed time
 	
-	// The current piece in play or null
-	protected Piece currentPiece;
-	protected int currentX;
-	protected int currentY;
-	protected boolean moved;	// did the player move the piece
-	
+	// The landed blocks, drawn for DRAW_OPTIMIZE
+	private BufferedImage landedImage;
+	private Board landedBoard;		// the board drawn in landedImage
+	private boolean landedValid;	// false when the image must be redrawn
+	private boolean pieceInPlay;	// is the current piece falling, i.e. not in landedImage
 	
-	// The piece we're thinking about playing
-	// -- set by computeNewPosition
-	// (storing this in ivars is slightly questionable style)
-	protected Piece newPiece;
-	protected int newX;
-	protected int newY;
-	
-	// State of the game
-	protected boolean gameOn;	// true if we are playing
-	protected int count;		 // how many pieces played so far
-	protected long startTime;	// used to measure elapsed time
-	protected Random random;	 // the random generator for new pieces
+	// While in tick(), the union of the rects to repaint
+	private Rectangle dirty;
+	private boolean inTick;
 	
 	
 	// Controls
 	protected JLabel countLabel;
 	protected JLabel scoreLabel;
-	protected int score;
 	protected JLabel timeLabel;
 	protected JButton startButton;
 	protected JButton stopButton;
@@ -103,11 +99,21 @@ public class JTetris extends JComponent {
 		// a 1 pixel border around the whole thing.
 		setPreferredSize(new Dimension((WIDTH * pixels)+2,
 				(HEIGHT+TOP_SPACE)*pixels+2));
-		gameOn = false;
 		
-		pieces = Piece.getPieces();
-		board = new Board(WIDTH, HEIGHT + TOP_SPACE);
-
+		engine = new TetrisEngine(WIDTH, HEIGHT, Piece.getPieces());
+		engine.setListener(this);
+		
+		// -Dtetris.record=file records the games for Replayer,
+		// e.g. to reproduce a bug exactly
+		String recordFile = System.getProperty("tetris.record");
+		if (recordFile != null) {
+			try {
+				engine.setListener(new ReplayRecorder(engine, new FileOutputStream(recordFile), this));
+			}
+			catch (IOException e) {
+				System.err.println("Could not record to " + recordFile + ": " + e.getMessage());
+			}
+		}
 
 		/*
 		 Register key handlers that call
@@ -204,28 +210,19 @@ public class JTetris extends JComponent {
 	 so the game is happening.
 	*/
 	public void startGame() {
-		// cheap way to reset the board state
-		board = new Board(WIDTH, HEIGHT + TOP_SPACE);
-		
-		// draw the new board state once
-		repaint();
-		
-		count = 0;
-		score = 0;
-		updateCounters();
-		gameOn = true;
-		
 		// Set mode based on checkbox at start of game
 		testMode = testButton.isSelected();
+		engine.setPieceLimit(testMode ? TEST_LIMIT : 0);
 		
-		if (testMode) random = new Random(0);	// same seq every time
-		else random = new Random(); // diff seq each game
-		
-		enableButtons();
 		timeLabel.setText(" ");
-		addNewPiece();
-		timer.start();
 		startTime = System.currentTimeMillis();
+		
+		// starting the engine draws the new board state once
+		if (testMode) engine.startGame(new Random(0));	// same seq every time
+		else engine.startGame(new Random()); // diff seq each game
+		
+		enableButtons();
+		if (engine.isGameOn()) timer.start();
 	}
 	
 	
@@ -234,252 +231,101 @@ public class JTetris extends JComponent {
 	 based on the gameOn state.
 	*/
 	private void enableButtons() {
-		startButton.setEnabled(!gameOn);
-		stopButton.setEnabled(gameOn);
+		startButton.setEnabled(!engine.isGameOn());
+		stopButton.setEnabled(engine.isGameOn());
 	}
 	
 	/**
 	 Stops the game.
 	*/
 	public void stopGame() {
-		gameOn = false;
-		enableButtons();
-		timer.stop();
-		
-		long delta = (System.currentTimeMillis() - startTime)/10;
-		timeLabel.setText(Double.toString(delta/100.0) + " seconds");
-
+		engine.stopGame();
 	}
 	
 	
 	/**
-	 Given a piece, tries to install that piece
-	 into the board and set it to be the current piece.
-	 Does the necessary repaints.
-	 If the placement is not possible, then the placement
-	 is undone, and the board is not changed. The board
-	 should be in the committed state when this is called.
-	 Returns the same error code as Board.place().
-	*/
-	public int setCurrent(Piece piece, int x, int y) {
-		int result = board.place(piece, x, y);
-		
-		if (result <= Board.PLACE_ROW_FILLED) { // SUCESS
-			// repaint the rect where it used to be
-			if (currentPiece != null) repaintPiece(currentPiece, currentX, currentY);
-			currentPiece = piece;
-			currentX = x;
-			currentY = y;
-			// repaint the rect where it is now
-			repaintPiece(currentPiece, currentX, currentY);
-		}
-		else {
-			board.undo();
-		}
-		
-		return(result);
+	 Updates the count/score labels with the latest values.
+	 */
+	private void updateCounters() {
+		countLabel.setText("Pieces " + engine.getCount());
+		scoreLabel.setText("Score " + engine.getScore());
 	}
-
-
-	/**
-	 Selects the next piece to use using the random generator
-	 set in startGame().
+	
+	
+	/*
+	 TetrisEngine.Listener callbacks -- the engine
+	 tells us what needs to be redrawn.
 	*/
-	public Piece pickNextPiece() {
-		int pieceNum;
-		
-		pieceNum = (int) (pieces.length * random.nextDouble());
-		
-		Piece piece	 = pieces[pieceNum];
-		
-		return(piece);
+	
+	public void pieceMoved(Piece piece, int x, int y) {
+		pieceInPlay = true;
+		repaintPiece(piece, x, y);
 	}
 	
-			
-	/**
-	 Tries to add a new random piece at the top of the board.
-	 Ends the game if it's not possible.
-	*/
-	public void addNewPiece() {
-		count++;
-		score++;
-		
-		if (testMode && count == TEST_LIMIT+1) {
-			 stopGame();
-			 return;
-		}
-
-		// commit things the way they are
-		board.commit();
-		currentPiece = null;
-
-		Piece piece = pickNextPiece();
-		
-		// Center it up at the top
-		int px = (board.getWidth() - piece.getWidth())/2;
-		int py = board.getHeight() - piece.getHeight();
-		
-		// add the new piece to be in play
-		int result = setCurrent(piece, px, py);
-		
-		// This probably never happens, since
-		// the blocks at the top allow space
-		// for new pieces to at least be added.
-		if (result>Board.PLACE_ROW_FILLED) {
-			stopGame();
-		}
-
-		updateCounters();
+	public void boardChanged() {
+		if (engine.getBoard() != landedBoard) landedValid = false;	// a new game
+		repaint();
 	}
 	
-	/**
-	 Updates the count/score labels with the latest values.
-	 */
-	private void updateCounters() {
-		countLabel.setText("Pieces " + count);
-		scoreLabel.setText("Score " + score);
+	public void pieceLanded(Piece piece, int x, int y) {
+		pieceInPlay = false;
+		if (landedValid) {
+			Graphics2D g = landedImage.createGraphics();
+			g.setColor(Color.black);
+			for (int cell: piece.getPackedBody()) {
+				drawBlock(g, x + Piece.packedX(cell), y + Piece.packedY(cell));
+			}
+			g.dispose();
+		}
 	}
 	
+	public void rowsCleared(int cleared) {
+		// clearing 4 gets you a beep!
+		if (cleared == 4) Toolkit.getDefaultToolkit().beep();
+		landedValid = false;
+		repaint();	// repaint to show the result of the row clearing
+	}
 	
-	/**
-	 Figures a new position for the current piece
-	 based on the given verb (LEFT, RIGHT, ...).
-	 The board should be in the committed state --
-	 i.e. the piece should not be in the board at the moment.
-	 This is necessary so dropHeight() may be called without
-	 the piece "hitting itself" on the way down.
-
-	 Sets the ivars newX, newY, and newPiece to hold
-	 what it thinks the new piece position should be.
-	 (Storing an intermediate result like that in
-	 ivars is a little tacky.)
-	*/
-	public void computeNewPosition(int verb) {
-		// As a starting point, the new position is the same as the old
-		newPiece = currentPiece;
-		newX = currentX;
-		newY = currentY;
-		
-		// Make changes based on the verb
-		switch (verb) {
-			case LEFT: newX--; break;
-			
-			case RIGHT: newX++; break;
-			
-			case ROTATE:
-				newPiece = newPiece.fastRotation();
-				
-				// tricky: make the piece appear to rotate about its center
-				// can't just leave it at the same lower-left origin as the
-				// previous piece.
-				newX = newX + (currentPiece.getWidth() - newPiece.getWidth())/2;
-				newY = newY + (currentPiece.getHeight() - newPiece.getHeight())/2;
-				break;
-				
-			case DOWN: newY--; break;
-			
-			case DROP:
-			 newY = board.dropHeight(newPiece, newX);
-			 
-			 // trick: avoid the case where the drop would cause
-			 // the piece to appear to move up
-			 if (newY > currentY) {
-				 newY = currentY;
-			 }
-			 break;
-			 
-			default:
-				 throw new RuntimeException("Bad verb");
-		}
+	public void countersChanged() {
+		updateCounters();
+	}
 	
+	public void gameOver() {
+		enableButtons();
+		timer.stop();
+		
+		long delta = (System.currentTimeMillis() - startTime)/10;
+		timeLabel.setText(Double.toString(delta/100.0) + " seconds");
 	}
 
 
-
 		
-	public static final int ROTATE = 0;
-	public static final int LEFT = 1;
-	public static final int RIGHT = 2;
-	public static final int DROP = 3;
-	public static final int DOWN = 4;
+	public static final int ROTATE = TetrisEngine.ROTATE;
+	public static final int LEFT = TetrisEngine.LEFT;
+	public static final int RIGHT = TetrisEngine.RIGHT;
+	public static final int DROP = TetrisEngine.DROP;
+	public static final int DOWN = TetrisEngine.DOWN;
 	/**
 	 Called to change the position of the current piece.
 	 Each key press calls this once with the verbs
 	 LEFT RIGHT ROTATE DROP for the user moves,
 	 and the timer calls it with the verb DOWN to move
 	 the piece down one square.
-
-	 Before this is called, the piece is at some location in the board.
-	 This advances the piece to be at its next location.
+	 The engine does the work; see TetrisEngine.tick().
 	 
 	 Overriden by the brain when it plays.
 	*/
 	public void tick(int verb) {
-		if (!gameOn) return;
-		
-		if (currentPiece != null) {
-			board.undo();	// remove the piece from its old position
-		}
-		
-		// Sets the newXXX ivars
-		computeNewPosition(verb);
-		
-		// try out the new position (rolls back if it doesn't work)
-		int result = setCurrent(newPiece, newX, newY);
-		
-		// if row clearing is going to happen, draw the
-		// whole board so the green row shows up
-		if (result ==  Board.PLACE_ROW_FILLED) {
-			repaint();
+		// collect the piece's old and new rects into one repaint
+		inTick = true;
+		dirty = null;
+		try {
+			engine.tick(verb);
 		}
-		
-
-		boolean failed = (result >= Board.PLACE_OUT_BOUNDS);
-		
-		// if it didn't work, put it back the way it was
-		if (failed) {
-			if (currentPiece != null) board.place(currentPiece, currentX, currentY);
-			repaintPiece(currentPiece, currentX, currentY);
+		finally {
+			inTick = false;
 		}
-		
-		/*
-		 How to detect when a piece has landed:
-		 if this move hits something on its DOWN verb,
-		 and the previous verb was also DOWN (i.e. the player was not
-		 still moving it),	then the previous position must be the correct
-		 "landed" position, so we're done with the falling of this piece.
-		*/
-		if (failed && verb==DOWN && !moved) {	// it's landed
-		
-			int cleared = board.clearRows();
-			if (cleared > 0) {
-				// score goes up by 5, 10, 20, 40 for row clearing
-				// clearing 4 gets you a beep!
-				switch (cleared) {
-					case 1: score += 5;	 break;
-					case 2: score += 10;  break;
-					case 3: score += 20;  break;
-					case 4: score += 40; Toolkit.getDefaultToolkit().beep(); break;
-					default: score += 50;  // could happen with non-standard pieces
-				}
-				updateCounters();
-				repaint();	// repaint to show the result of the row clearing
-			}
-			
-			
-			// if the board is too tall, we've lost
-			if (board.getMaxHeight() > board.getHeight() - TOP_SPACE) {
-				stopGame();
-			}
-			// Otherwise add a new piece and keep playing
-			else {
-				addNewPiece();
-			}
-		}
-		
-		// Note if the player made a successful non-DOWN move --
-		// used to detect if the piece has landed on the next tick()
-		moved = (!failed && verb!=DOWN);
+		if (dirty != null) repaint(dirty);
 	}
 
 
@@ -495,7 +341,10 @@ public class JTetris extends JComponent {
 			int pwidth = xPixel(x+piece.getWidth()) - px;
 			int pheight = yPixel(y-1) - py;
 			
-			repaint(px, py, pwidth, pheight);
+			Rectangle rect = new Rectangle(px, py, pwidth, pheight);
+			if (!inTick) repaint(rect);
+			else if (dirty == null) dirty = rect;
+			else dirty.add(rect);
 		}
 		else {
 			// Not-optimized -- rather than repaint
@@ -520,12 +369,12 @@ public class JTetris extends JComponent {
 	
 	// width in pixels of a block
 	private final float dX() {
-		return( ((float)(getWidth()-2)) / board.getWidth() );
+		return( ((float)(getWidth()-2)) / engine.getBoard().getWidth() );
 	}
 
 	// height in pixels of a block
 	private final float dY() {
-		return( ((float)(getHeight()-2)) / board.getHeight() );
+		return( ((float)(getHeight()-2)) / engine.getBoard().getHeight() );
 	}
 	
 	// the x pixel coord of the left side of a block
@@ -546,6 +395,7 @@ public class JTetris extends JComponent {
 	 Draws rows that are filled all the way across in green.
 	*/
 	public void paintComponent(Graphics g) {
+		Board board = engine.getBoard();
 		
 		// Draw a rect around the whole thing
 		g.drawRect(0, 0, getWidth()-1, getHeight()-1);
@@ -556,11 +406,27 @@ public class JTetris extends JComponent {
 		g.drawLine(0, spacerY, getWidth()-1, spacerY);
 
 
-		// check if we are drawing with clipping
-		//Shape shape = g.getClip();
-		Rectangle clip = null;
 		if (DRAW_OPTIMIZE) {
-			clip = g.getClipBounds();
+			// the landed blocks in one go (Java2D only copies the clip),
+			// then the falling piece and the full rows on top
+			updateLandedImage();
+			g.drawImage(landedImage, 0, 0, null);
+			
+			Piece piece = engine.getCurrentPiece();
+			if (pieceInPlay && piece != null) {
+				for (int cell: piece.getPackedBody()) {
+					drawBlock(g, engine.getCurrentX() + Piece.packedX(cell), engine.getCurrentY() + Piece.packedY(cell));
+				}
+			}
+			
+			g.setColor(Color.green);
+			for (int y = 0; y < board.getMaxHeight(); y++) {
+				if (board.getRowWidth(y) == board.getWidth()) {
+					for (int x = 0; x < board.getWidth(); x++) drawBlock(g, x, y);
+				}
+			}
+			g.setColor(Color.black);
+			return;
 		}
 
 
@@ -575,14 +441,6 @@ public class JTetris extends JComponent {
 		for (x=0; x<bWidth; x++) {
 			int left = xPixel(x);	// the left pixel
 			
-			// right pixel (useful for clip optimization)
-			int right = xPixel(x+1) -1;
-			
-			// skip this x if it is outside the clip rect
-			if (DRAW_OPTIMIZE && clip!=null) {
-				if ((right<clip.x) || (left>=(clip.x+clip.width))) continue;
-			}
-			
 			// draw from 0 up to the col height
 			final int yHeight = board.getColumnHeight(x);
 			for (y=0; y<yHeight; y++) {
@@ -599,6 +457,75 @@ public class JTetris extends JComponent {
 	}
 	
 	
+	/*
+	 Fills block x,y in the current color, leaving a white border.
+	 */
+	private void drawBlock(Graphics g, int x, int y) {
+		g.fillRect(xPixel(x)+1, yPixel(y)+1, Math.round(dX()-2), Math.round(dY()-2));
+	}
+	
+	
+	/*
+	 Redraws landedImage from the board if it is out of date: every
+	 block but the falling piece's. Each run of blocks across a row is
+	 one fill, and then the white borders between the blocks are
+	 cut back out, one clear per column, rather than a fill per block.
+	 */
+	private void updateLandedImage() {
+		Board board = engine.getBoard();
+		if (landedValid && landedBoard == board && landedImage != null
+				&& landedImage.getWidth() == getWidth() && landedImage.getHeight() == getHeight()) return;
+		
+		if (landedImage == null || landedImage.getWidth() != getWidth() || landedImage.getHeight() != getHeight()) {
+			landedImage = new BufferedImage(Math.max(1, getWidth()), Math.max(1, getHeight()), BufferedImage.TYPE_INT_ARGB);
+		}
+		landedBoard = board;
+		landedValid = true;
+		
+		Graphics2D g = landedImage.createGraphics();
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(0, 0, landedImage.getWidth(), landedImage.getHeight());
+		g.setComposite(AlphaComposite.SrcOver);
+		g.setColor(Color.black);
+		
+		final int dx = Math.round(dX()-2);
+		final int dy = Math.round(dY()-2);
+		final int bWidth = board.getWidth();
+		for (int y = 0; y < board.getMaxHeight(); y++) {
+			int x = 0;
+			while (x < bWidth) {
+				if (!isLanded(board, x, y)) {
+					x++;
+					continue;
+				}
+				int start = x;
+				while (x < bWidth && isLanded(board, x, y)) x++;
+				int left = xPixel(start)+1;
+				g.fillRect(left, yPixel(y)+1, xPixel(x-1)+1+dx - left, dy);
+			}
+		}
+		
+		// the borders between neighbor blocks
+		g.setComposite(AlphaComposite.Clear);
+		for (int x = 0; x < bWidth-1; x++) {
+			int gap = xPixel(x)+1+dx;
+			g.fillRect(gap, 0, xPixel(x+1)+1 - gap, landedImage.getHeight());
+		}
+		g.dispose();
+	}
+	
+	// is block x,y filled, and not part of the falling piece
+	private boolean isLanded(Board board, int x, int y) {
+		if (!board.getGrid(x, y)) return false;
+		Piece piece = engine.getCurrentPiece();
+		if (!pieceInPlay || piece == null) return true;
+		for (int cell: piece.getPackedBody()) {
+			if (engine.getCurrentX() + Piece.packedX(cell) == x && engine.getCurrentY() + Piece.packedY(cell) == y) return false;
+		}
+		return true;
+	}
+	
+	
 	/**
 	 Updates the timer to reflect the current setting of the 
 	 speed slider.
@@ -0,0 +1,45 @@
+// LinearScorer.java
+
+/**
+ A FeatureScorer that is a weighted sum of the features.
+ Only features with a non-zero weight are asked for.
+*/
+public class LinearScorer implements FeatureScorer {
+	private final double[] weights;
+	private final int mask;
+
+	/**
+	 Creates a scorer with one weight per feature, indexed by the
+	 BoardFeatures constants. Makes its own copy of the array.
+	*/
+	public LinearScorer(double[] weights) {
+		if (weights.length != BoardFeatures.COUNT) {
+			throw new IllegalArgumentException("expected " + BoardFeatures.COUNT + " weights, got " + weights.length);
+		}
+		this.weights = weights.clone();
+		int m = 0;
+		for (int i = 0; i < weights.length; i++) {
+			if (weights[i] != 0) m |= 1 << i;
+		}
+		mask = m;
+	}
+
+	public int getFeatureMask() {
+		return mask;
+	}
+
+	public double score(double[] features) {
+		double sum = 0;
+		for (int i = 0; i < weights.length; i++) {
+			sum += weights[i] * features[i];
+		}
+		return sum;
+	}
+
+	/**
+	 Returns a copy of the weights.
+	*/
+	public double[] getWeights() {
+		return weights.clone();
+	}
+}
@@ -0,0 +1,297 @@
+// LookaheadBrain.java
+
+import java.util.Arrays;
+
+/**
+ A DefaultBrain that looks more than one piece ahead.
+ bestMove() searches "depth" plies: the current piece, then the
+ preview piece if it is known, then every possible piece (averaged,
+ since any of them may come). At each ply only the beamWidth plays
+ with the best rateMove() scores are followed down to the next ply,
+ and a play is worth the best score reachable below it.
+
+ The search reuses one board per ply and the usual place(),
+ rateMove(), undo() cycle, so it allocates nothing once warmed up.
+ A small transposition cache keyed by Board.contentHash() stops the
+ same resulting board from being searched twice in one bestMove().
+ To tune the rating, subclass and override rateBoard() or rateMove()
+ as with DefaultBrain.
+
+ The search is anytime: the root plays are followed best-rated
+ first, so stopping at a deadline still returns the best of the
+ plays searched so far, or the best-rated root play.
+*/
+public class LookaheadBrain extends DefaultBrain implements AnytimeBrain {
+	public static final int DEFAULT_DEPTH = 2;
+	public static final int DEFAULT_BEAM = 4;
+
+	// score for a ply where the piece does not fit at all
+	private static final double LOST = 1e20;
+
+	// transposition cache slots, a power of 2
+	private static final int CACHE_SIZE = 1 << 14;
+
+	private int depth;
+	private int beamWidth;
+	private Piece[] pieces;		// the pieces that may come in unknown plies
+
+	// boards[level] holds the board seen at that ply (level 0 is the caller's)
+	private Board[] boards;
+
+	// the beam for each ply, best score first
+	private Piece[][] beamPieces;
+	private int[][] beamXs;
+	private int[][] beamYs;
+	private double[][] beamScores;
+
+	// lossy transposition cache; a slot is valid when its stamp is current
+	private long[] cacheKeys;
+	private double[] cacheValues;
+	private int[] cacheStamps;
+	private int stamp;
+
+	// per-call state for bestMove()
+	private Piece[] known = new Piece[2];
+	private int knownCount;
+	private int limitHeight;
+
+	/**
+	 Creates a brain searching DEFAULT_DEPTH plies with DEFAULT_BEAM plays per ply.
+	*/
+	public LookaheadBrain() {
+		this(DEFAULT_DEPTH, DEFAULT_BEAM);
+	}
+
+	/**
+	 Creates a brain searching the given number of plies (at least 1),
+	 following the best beamWidth plays (at least 1) at each ply.
+	*/
+	public LookaheadBrain(int depth, int beamWidth) {
+		this(depth, beamWidth, Piece.getPieces());
+	}
+
+	/**
+	 Creates a brain as above, for games played with the given root
+	 pieces (e.g. from Piece.loadPieces()), which it averages over
+	 for the plies where the piece is not known yet.
+	*/
+	public LookaheadBrain(int depth, int beamWidth, Piece[] pieces) {
+		if (depth < 1 || beamWidth < 1) throw new IllegalArgumentException("depth and beamWidth must be positive");
+		this.depth = depth;
+		this.beamWidth = beamWidth;
+		this.pieces = pieces;
+
+		beamPieces = new Piece[depth][beamWidth];
+		beamXs = new int[depth][beamWidth];
+		beamYs = new int[depth][beamWidth];
+		beamScores = new double[depth][beamWidth];
+
+		cacheKeys = new long[CACHE_SIZE];
+		cacheValues = new double[CACHE_SIZE];
+		cacheStamps = new int[CACHE_SIZE];
+	}
+
+	/**
+	 Searches without knowing the preview piece.
+	*/
+	@Override
+	public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+		return bestMove(board, piece, null, limitHeight, move);
+	}
+
+	public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move) {
+		return search(board, piece, nextPiece, limitHeight, move, false, 0);
+	}
+
+	/**
+	 Searches until System.nanoTime() passes the deadline, checked
+	 between the plays of the root beam.
+	*/
+	public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move, long deadline) {
+		return search(board, piece, nextPiece, limitHeight, move, true, deadline);
+	}
+
+	private Brain.Move search(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move,
+			boolean timed, long deadline) {
+		if (move==null) move = new Brain.Move();
+
+		board.commit();
+		prepareBoards(board);
+		known[0] = piece;
+		known[1] = nextPiece;
+		knownCount = (nextPiece == null) ? 1 : 2;
+		this.limitHeight = limitHeight;
+		if (++stamp == 0) {		// wrapped, so old stamps could look current
+			Arrays.fill(cacheStamps, 0);
+			stamp = 1;
+		}
+
+		int count = fillBeam(0, board, piece);
+		if (count == 0) return(null);	// could not find a play at all!
+
+		// follow each play in the root beam down to the deeper plies
+		int best = 0;
+		double bestScore = beamScores[0][0];
+		if (depth > 1) {
+			bestScore = LOST;
+			for (int i = 0; i < count; i++) {
+				if (timed && i > 0 && System.nanoTime() - deadline >= 0) break;	// out of time
+				double score = followPlay(0, board, i);
+				if (score < bestScore) {
+					bestScore = score;
+					best = i;
+				}
+			}
+		}
+
+		move.x = beamXs[0][best];
+		move.y = beamYs[0][best];
+		move.piece = beamPieces[0][best];
+		move.score = bestScore;
+		return(move);
+	}
+
+	/*
+	 Returns the score of the board at the given ply: the best score
+	 for the known piece, or the average over all pieces if the piece
+	 at this ply is not known yet.
+	 */
+	private double expand(int level, Board board) {
+		if (level < knownCount) return searchPiece(level, board, known[level]);
+
+		long key = cacheKey(board, level, 0);
+		int slot = cacheSlot(key);
+		if (cacheStamps[slot] == stamp && cacheKeys[slot] == key) return cacheValues[slot];
+
+		double sum = 0;
+		for (int i = 0; i < pieces.length; i++) {
+			sum += searchPiece(level, board, pieces[i]);
+		}
+		double score = sum / pieces.length;
+		cacheStore(slot, key, score);
+		return score;
+	}
+
+	/*
+	 Returns the best score reachable by playing the given piece
+	 on the board at the given ply.
+	 */
+	private double searchPiece(int level, Board board, Piece piece) {
+		long key = cacheKey(board, level, piece.hashCode());
+		int slot = cacheSlot(key);
+		if (cacheStamps[slot] == stamp && cacheKeys[slot] == key) return cacheValues[slot];
+
+		double score = LOST;
+		int count = fillBeam(level, board, piece);
+		if (count > 0) {
+			if (level == depth-1) {
+				score = beamScores[level][0];
+			}
+			else {
+				for (int i = 0; i < count; i++) {
+					score = Math.min(score, followPlay(level, board, i));
+				}
+			}
+		}
+
+		cacheStore(slot, key, score);
+		return score;
+	}
+
+	/*
+	 Plays entry i of the beam at the given ply, copies the result
+	 into the next ply's board, backs the play out, and searches on.
+	 */
+	private double followPlay(int level, Board board, int i) {
+		int result = board.place(beamPieces[level][i], beamXs[level][i], beamYs[level][i]);
+		if (result == Board.PLACE_ROW_FILLED) board.clearRows();
+		boards[level+1].copyFrom(board);
+		board.undo();
+		return expand(level+1, boards[level+1]);
+	}
+
+	/*
+	 Tries every play of the piece on the board, as DefaultBrain does,
+	 keeping the best beamWidth of them in the beam for this ply.
+	 Returns how many plays are in the beam.
+	 */
+	private int fillBeam(int level, Board board, Piece piece) {
+		Piece[] bPieces = beamPieces[level];
+		int[] bXs = beamXs[level];
+		int[] bYs = beamYs[level];
+		double[] bScores = beamScores[level];
+		int count = 0;
+		int tried = 0;
+
+		Piece current = piece;
+		while (true) {
+			final int yBound = limitHeight - current.getHeight()+1;
+			final int xBound = board.getWidth() - current.getWidth()+1;
+
+			for (int x = 0; x<xBound; x++) {
+				int y = board.dropHeight(current, x);
+				if (y<yBound) {
+					int result = board.place(current, x, y);
+					if (result <= Board.PLACE_ROW_FILLED) {
+						if (result == Board.PLACE_ROW_FILLED) board.clearRows();
+
+						double score = rateMove(board, current, x, y);
+						tried++;
+
+						// insertion into the sorted beam, earlier plays win ties
+						if (count < beamWidth || score < bScores[count-1]) {
+							if (count < beamWidth) count++;
+							int j = count-1;
+							while (j > 0 && score < bScores[j-1]) {
+								bPieces[j] = bPieces[j-1];
+								bXs[j] = bXs[j-1];
+								bYs[j] = bYs[j-1];
+								bScores[j] = bScores[j-1];
+								j--;
+							}
+							bPieces[j] = current;
+							bXs[j] = x;
+							bYs[j] = y;
+							bScores[j] = score;
+						}
+					}
+					board.undo();
+				}
+			}
+
+			current = current.fastRotation();
+			if (current == piece) break;
+		}
+		if (TetrisMetrics.ENABLED) TetrisMetrics.candidates(tried);
+		return count;
+	}
+
+	/*
+	 Makes sure there is a board for each ply below the root,
+	 the same size as the given board.
+	 */
+	private void prepareBoards(Board board) {
+		if (boards != null && boards.length > 1 && boards[1].getWidth() == board.getWidth()
+				&& boards[1].getHeight() == board.getHeight()) return;
+		boards = new Board[depth];
+		for (int i = 1; i < depth; i++) {
+			boards[i] = new Board(board.getWidth(), board.getHeight());
+		}
+	}
+
+	// cache helpers -- the key mixes the board, the ply and the piece
+	private long cacheKey(Board board, int level, int pieceKey) {
+		long key = board.contentHash() * 31 + level;
+		return key ^ (pieceKey * 0x9E3779B97F4A7C15L);
+	}
+
+	private int cacheSlot(long key) {
+		return (int)(key ^ (key >>> 32)) & (CACHE_SIZE-1);
+	}
+
+	private void cacheStore(int slot, long key, double value) {
+		cacheKeys[slot] = key;
+		cacheValues[slot] = value;
+		cacheStamps[slot] = stamp;
+	}
+}
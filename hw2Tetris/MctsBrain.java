@@ -0,0 +1,407 @@
+// MctsBrain.java
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ A brain that spends CPU on survival with Monte Carlo tree search.
+ The tree alternates decision nodes (where to play a known piece)
+ and chance nodes (which piece comes next -- any of the pieces,
+ equally likely, as TetrisEngine.pickNextPiece() draws them; the
+ preview piece, when known and one of the brain's pieces, is the
+ only outcome of the first one).
+ Each search walks down the tree choosing plays by UCB1, adds
+ nodes as it goes, and then plays a rollout: a few more random
+ pieces played greedily by DefaultBrain. A rollout is worth 0 if
+ the stack got too high and 1/(1 + rateBoard()/100) of its last
+ board otherwise. The play at the root searched most is chosen.
+
+ To keep the tree narrow, a decision node only considers the
+ "breadth" plays DefaultBrain.rateMove() likes best.
+
+ The searches run on a thread pool, each worker with its own board
+ copy, rollout brain and random generator. The tree statistics are
+ atomic counters and new nodes are added with compareAndSet, so the
+ workers never lock. A play counts as visited as soon as a worker
+ chooses it, before its rollout is done (a "virtual loss"), which
+ spreads the workers over different plays.
+
+ bestMove() searches until the rollout budget is used or the time
+ budget runs out; as an AnytimeBrain it also stops at the deadline.
+ One brain runs one search at a time -- it is not thread safe itself.
+*/
+public class MctsBrain extends DefaultBrain implements AnytimeBrain {
+	public static final int DEFAULT_ROLLOUTS = 2000;
+	public static final long DEFAULT_MILLIS = 200;
+	public static final int DEFAULT_BREADTH = 6;
+	public static final int DEFAULT_TREE_DEPTH = 3;
+	public static final int DEFAULT_ROLLOUT_DEPTH = 8;
+
+	// exploration weight in UCB1
+	private static final double EXPLORATION = 0.4;
+
+	// rollout values are added up in fixed point, so plain atomic longs will do
+	private static final double SCALE = 1L << 30;
+
+	private final ExecutorService pool;
+	private final int threads;
+	private final int rollouts;
+	private final long millis;
+	private final Piece[] pieces;
+	private int breadth = DEFAULT_BREADTH;
+	private int treeDepth = DEFAULT_TREE_DEPTH;
+	private int rolloutDepth = DEFAULT_ROLLOUT_DEPTH;
+	private long seed = System.nanoTime();
+
+	// per-call state for bestMove(), read by the workers
+	private Board rootBoard;
+	private int knownNext;		// index of the preview piece in pieces, -1 if unknown
+	private int limitHeight;
+	private long deadline;
+	private AtomicInteger started;
+	private Decision root;
+
+	// made when first needed, shared by the brains that use it
+	private static ExecutorService sharedPool;
+
+	/**
+	 Creates a brain searching on a pool shared by such brains, a daemon
+	 thread per core, with the default budgets.
+	*/
+	public MctsBrain() {
+		this(sharedPool(), Runtime.getRuntime().availableProcessors(),
+				DEFAULT_ROLLOUTS, DEFAULT_MILLIS, Piece.getPieces());
+	}
+
+	/**
+	 Creates a brain running the given number of workers on the pool,
+	 searching at most the given number of rollouts and milliseconds
+	 per move (0 for no limit on either, but not both), for games
+	 played with the given root pieces.
+	*/
+	public MctsBrain(ExecutorService pool, int threads, int rollouts, long millis, Piece[] pieces) {
+		if (threads < 1) throw new IllegalArgumentException("threads must be positive");
+		if (rollouts <= 0 && millis <= 0) throw new IllegalArgumentException("no budget");
+		this.pool = pool;
+		this.threads = threads;
+		this.rollouts = (rollouts > 0) ? rollouts : Integer.MAX_VALUE;
+		this.millis = millis;
+		this.pieces = pieces;
+	}
+
+	/**
+	 Sets the search shape: plays considered per decision, the number
+	 of pieces played in the tree, and the pieces played per rollout.
+	*/
+	public void setShape(int breadth, int treeDepth, int rolloutDepth) {
+		this.breadth = Math.max(1, breadth);
+		this.treeDepth = Math.max(1, treeDepth);
+		this.rolloutDepth = Math.max(0, rolloutDepth);
+	}
+
+	/**
+	 Sets the seed of the workers' random generators; with one
+	 thread and no time budget the search is then repeatable.
+	*/
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	@Override
+	public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+		return bestMove(board, piece, null, limitHeight, move);
+	}
+
+	public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move) {
+		long end = (millis > 0) ? System.nanoTime() + millis * 1000000L : 0;
+		return search(board, piece, nextPiece, limitHeight, move, millis > 0, end);
+	}
+
+	public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move, long deadline) {
+		if (millis > 0) {
+			long end = System.nanoTime() + millis * 1000000L;
+			if (end - deadline < 0) deadline = end;
+		}
+		return search(board, piece, nextPiece, limitHeight, move, true, deadline);
+	}
+
+	private Brain.Move search(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move,
+			boolean timed, long deadline) {
+		if (move==null) move = new Brain.Move();
+
+		board.commit();
+		rootBoard = board;
+		knownNext = indexOf(nextPiece);
+		this.limitHeight = limitHeight;
+		this.deadline = timed ? deadline : 0;
+		started = new AtomicInteger();
+		root = new Decision(board, piece);
+		if (root.count == 0) return(null);	// could not find a play at all!
+
+		if (root.count > 1) {
+			List<Callable<Void>> workers = new ArrayList<Callable<Void>>();
+			for (int t = 0; t < threads; t++) workers.add(new Worker(seed + t, timed));
+			try {
+				for (Future<Void> f: pool.invokeAll(workers)) f.get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();		// stop, with what we have
+			}
+			catch (ExecutionException e) {
+				throw new RuntimeException(e.getCause());
+			}
+		}
+
+		// the most searched play, the better rated one on a tie
+		int best = 0;
+		for (int i = 1; i < root.count; i++) {
+			if (root.visits.get(i) > root.visits.get(best)) best = i;
+		}
+		move.piece = root.pieces[best];
+		move.x = root.xs[best];
+		move.y = root.ys[best];
+		move.score = -root.mean(best);
+		rootBoard = null;
+		return(move);
+	}
+
+	/**
+	 Returns how many rollouts the last bestMove() ran.
+	*/
+	public int getLastRollouts() {
+		return (started == null) ? 0 : Math.min(started.get(), rollouts);
+	}
+
+
+	/*
+	 A decision node: the best-rated plays of its piece on its board,
+	 with the statistics of each and, once reached, the chance node
+	 after it.
+	 */
+	private final class Decision {
+		final Piece[] pieces;
+		final int[] xs;
+		final int[] ys;
+		final int count;
+		final AtomicInteger total = new AtomicInteger();
+		final AtomicIntegerArray visits;
+		final AtomicLongArray values;
+		final AtomicReferenceArray<Chance> next;
+
+		/*
+		 Rates every drop of the piece as DefaultBrain does and keeps the
+		 best "breadth" of them. The board is left as it was.
+		 */
+		Decision(Board board, Piece piece) {
+			Piece[] bPieces = new Piece[breadth];
+			int[] bXs = new int[breadth];
+			int[] bYs = new int[breadth];
+			double[] bScores = new double[breadth];
+			int n = 0;
+
+			Piece current = piece;
+			do {
+				final int yBound = limitHeight - current.getHeight()+1;
+				final int xBound = board.getWidth() - current.getWidth()+1;
+				for (int x = 0; x < xBound; x++) {
+					int y = board.dropHeight(current, x);
+					if (y >= yBound) continue;
+					int result = board.place(current, x, y);
+					if (result <= Board.PLACE_ROW_FILLED) {
+						if (result == Board.PLACE_ROW_FILLED) board.clearRows();
+						double score = rateMove(board, current, x, y);
+						if (n < breadth || score < bScores[n-1]) {
+							if (n < breadth) n++;
+							int j = n-1;
+							while (j > 0 && score < bScores[j-1]) {
+								bPieces[j] = bPieces[j-1];
+								bXs[j] = bXs[j-1];
+								bYs[j] = bYs[j-1];
+								bScores[j] = bScores[j-1];
+								j--;
+							}
+							bPieces[j] = current;
+							bXs[j] = x;
+							bYs[j] = y;
+							bScores[j] = score;
+						}
+					}
+					board.undo();
+				}
+				current = current.fastRotation();
+			} while (current != piece);
+
+			pieces = bPieces;
+			xs = bXs;
+			ys = bYs;
+			count = n;
+			visits = new AtomicIntegerArray(n);
+			values = new AtomicLongArray(n);
+			next = new AtomicReferenceArray<Chance>(n);
+		}
+
+		/*
+		 UCB1, unvisited plays first in rating order. Counts the visit
+		 right away, so other workers see it before the value is in.
+		 */
+		int select() {
+			int best = -1;
+			double bestUcb = Double.NEGATIVE_INFINITY;
+			double log = Math.log(Math.max(1, total.get()));
+			for (int i = 0; i < count; i++) {
+				int n = visits.get(i);
+				if (n == 0) {
+					best = i;
+					break;
+				}
+				double ucb = mean(i) + EXPLORATION * Math.sqrt(log / n);
+				if (ucb > bestUcb) {
+					bestUcb = ucb;
+					best = i;
+				}
+			}
+			visits.incrementAndGet(best);
+			total.incrementAndGet();
+			return best;
+		}
+
+		double mean(int i) {
+			int n = visits.get(i);
+			return (n == 0) ? 0 : values.get(i) / SCALE / n;
+		}
+
+		Chance chance(int i) {
+			Chance c = next.get(i);
+			if (c == null) {
+				next.compareAndSet(i, null, new Chance());
+				c = next.get(i);
+			}
+			return c;
+		}
+	}
+
+	/*
+	 A chance node: a decision node for each piece that may come next.
+	 */
+	private final class Chance {
+		final AtomicReferenceArray<Decision> children = new AtomicReferenceArray<Decision>(pieces.length);
+
+		/*
+		 The decision node for pieces[k], made from the board (which is
+		 in this node's state) by the first worker to get here.
+		 */
+		Decision child(int k, Board board) {
+			Decision d = children.get(k);
+			if (d == null) {
+				children.compareAndSet(k, null, new Decision(board, pieces[k]));
+				d = children.get(k);
+			}
+			return d;
+		}
+	}
+
+	/*
+	 One worker: searches until the budget is used up.
+	 */
+	private final class Worker implements Callable<Void> {
+		private final Random random;
+		private final boolean timed;
+		private final Board board;
+		private final DefaultBrain policy = new DefaultBrain();
+		private final Brain.Move scratch = new Brain.Move();
+		private final Decision[] pathNodes = new Decision[treeDepth];
+		private final int[] pathPlays = new int[treeDepth];
+
+		Worker(long seed, boolean timed) {
+			random = new Random(seed);
+			this.timed = timed;
+			board = new Board(rootBoard);
+		}
+
+		public Void call() {
+			while (started.getAndIncrement() < rollouts) {
+				if (timed && System.nanoTime() - deadline >= 0) break;
+				if (Thread.currentThread().isInterrupted()) break;
+				searchOnce();
+			}
+			return null;
+		}
+
+		private void searchOnce() {
+			board.copyFrom(rootBoard);
+			Decision node = root;
+			int depth = 0;
+			boolean lost = false;
+			while (true) {
+				int play = node.select();
+				pathNodes[depth] = node;
+				pathPlays[depth] = play;
+				depth++;
+				if (!play(node.pieces[play], node.xs[play], node.ys[play])) {
+					lost = true;
+					break;
+				}
+				if (depth == treeDepth) break;
+
+				int k = (depth == 1 && knownNext >= 0) ? knownNext : random.nextInt(pieces.length);
+				Decision child = node.chance(play).child(k, board);
+				if (child.count == 0) {
+					lost = true;
+					break;
+				}
+				node = child;
+			}
+
+			double value = lost ? 0 : rollout();
+			long fixed = (long)(value * SCALE);
+			for (int d = 0; d < depth; d++) pathNodes[d].values.addAndGet(pathPlays[d], fixed);
+		}
+
+		/*
+		 Plays greedily for rolloutDepth random pieces, returns the value.
+		 */
+		private double rollout() {
+			for (int i = 0; i < rolloutDepth; i++) {
+				Piece piece = pieces[random.nextInt(pieces.length)];
+				Brain.Move move = policy.bestMove(board, piece, limitHeight, scratch);
+				if (move == null || !play(move.piece, move.x, move.y)) return 0;
+			}
+			return 1 / (1 + policy.rateBoard(board) / 100);
+		}
+
+		// plays the piece for good on the worker's board, false if that loses
+		private boolean play(Piece piece, int x, int y) {
+			if (board.place(piece, x, y) > Board.PLACE_ROW_FILLED) {
+				board.undo();
+				return false;
+			}
+			board.clearRows();
+			board.commit();
+			return board.getMaxHeight() <= limitHeight;
+		}
+	}
+
+	// the index of the piece in pieces, -1 if it is null or not one of them
+	private int indexOf(Piece piece) {
+		for (int k = 0; k < pieces.length; k++) {
+			if (pieces[k] == piece) return k;
+		}
+		return -1;
+	}
+
+	private static synchronized ExecutorService sharedPool() {
+		if (sharedPool != null) return sharedPool;
+		int threads = Runtime.getRuntime().availableProcessors();
+		sharedPool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mcts");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		return sharedPool;
+	}
+}
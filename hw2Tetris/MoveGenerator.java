@@ -0,0 +1,186 @@
+// MoveGenerator.java
+
+import java.util.Arrays;
+
+/**
+ Finds every place a piece can come to rest by really moving it,
+ as a player would, rather than only dropping it straight down the
+ way DefaultBrain does -- so it also finds tucks and slides under
+ overhangs, and leaves out drops that the piece cannot get to from
+ where it appears.
+
+ The search is a breadth first search over the piece's states
+ (rotation, x, y), starting where TetrisEngine.addNewPiece() puts a
+ new piece and moving with the verbs LEFT, RIGHT, ROTATE and DOWN,
+ which move it just as TetrisEngine.tick() does. A state where the
+ piece cannot go DOWN is a resting placement. Collisions are tested
+ with Board.canPlace(), a few word operations per state.
+
+ Typical client code looks like...
+ <pre>
+ MoveGenerator generator = new MoveGenerator();
+ int count = generator.generate(board, piece);
+ for (int i = 0; i < count; i++) {
+ 	board.place(generator.getPiece(i), generator.getX(i), generator.getY(i));
+ 	...
+ 	board.undo();
+ }
+ int length = generator.getPath(best, verbs);	// how to get there
+ </pre>
+ Each state has a small int id, and the visited set, the queue and
+ the path links are int arrays indexed by it, kept between calls;
+ a visited mark is the number of the search that made it, so nothing
+ needs clearing. Once the arrays are big enough for the board,
+ generate() allocates nothing. A generator is not thread safe.
+*/
+public class MoveGenerator {
+	// the verbs, as in TetrisEngine
+	public static final int ROTATE = TetrisEngine.ROTATE;
+	public static final int LEFT = TetrisEngine.LEFT;
+	public static final int RIGHT = TetrisEngine.RIGHT;
+	public static final int DOWN = TetrisEngine.DOWN;
+
+	private static final int[] VERBS = { DOWN, LEFT, RIGHT, ROTATE };
+
+	private int width;
+	private int height;
+	private Piece[] rotations = new Piece[4];	// by rotation index from the piece passed in
+	private int rotationCount;
+
+	// per state, indexed by id = (rotation*height + y)*width + x
+	private int[] visited = new int[0];		// search number that reached the state
+	private int[] parent = new int[0];		// state it was reached from, -1 for the start
+	private byte[] verb = new byte[0];		// the verb that reached it
+	private int search;
+
+	private int[] queue = new int[0];
+	private int[] placements = new int[0];	// ids of the resting states, in search order
+	private int count;
+
+	/**
+	 Finds every resting placement of the piece on the board that the
+	 piece can reach from where a new piece appears, and returns how
+	 many there are; see getPiece(), getX(), getY() and getPath().
+	 The board is not changed. Returns 0 if the piece does not fit
+	 where it appears.
+	*/
+	public int generate(Board board, Piece piece) {
+		setUp(board, piece);
+		count = 0;
+		if (++search == 0) {	// wrapped, so old marks could look current
+			Arrays.fill(visited, 0);
+			search = 1;
+		}
+
+		// where addNewPiece() puts the piece
+		int startX = (width - piece.getWidth())/2;
+		int startY = height - piece.getHeight();
+		if (!board.canPlace(piece, startX, startY)) return 0;
+
+		int head = 0, tail = 0;
+		int start = id(0, startX, startY);
+		visited[start] = search;
+		parent[start] = -1;
+		queue[tail++] = start;
+
+		while (head < tail) {
+			int state = queue[head++];
+			int r = state / (width*height);
+			int y = (state / width) % height;
+			int x = state % width;
+			Piece current = rotations[r];
+
+			if (!board.canPlace(current, x, y - 1)) placements[count++] = state;
+
+			for (int v: VERBS) {
+				int nr = r, nx = x, ny = y;
+				switch (v) {
+					case DOWN: ny--; break;
+					case LEFT: nx--; break;
+					case RIGHT: nx++; break;
+					case ROTATE:
+						// about the center, as TetrisEngine.computeNewPosition()
+						nr = (r + 1) % rotationCount;
+						nx = x + (current.getWidth() - rotations[nr].getWidth())/2;
+						ny = y + (current.getHeight() - rotations[nr].getHeight())/2;
+						break;
+				}
+				if (!board.canPlace(rotations[nr], nx, ny)) continue;
+				int next = id(nr, nx, ny);
+				if (visited[next] == search) continue;
+				visited[next] = search;
+				parent[next] = state;
+				verb[next] = (byte)v;
+				queue[tail++] = next;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 Returns the number of placements found by the last generate().
+	*/
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 Returns the piece (the rotation) of placement i.
+	*/
+	public Piece getPiece(int i) {
+		return rotations[placements[i] / (width*height)];
+	}
+
+	public int getX(int i) {
+		return placements[i] % width;
+	}
+
+	public int getY(int i) {
+		return (placements[i] / width) % height;
+	}
+
+	/**
+	 Writes the verbs that take a new piece to placement i into the
+	 array, first verb first, and returns how many there are. The
+	 path is a shortest one. The array needs room for the path;
+	 width*height*4 is always enough.
+	*/
+	public int getPath(int i, int[] verbs) {
+		int length = 0;
+		for (int s = placements[i]; parent[s] != -1; s = parent[s]) length++;
+		int k = length;
+		for (int s = placements[i]; parent[s] != -1; s = parent[s]) verbs[--k] = verb[s];
+		return length;
+	}
+
+	/*
+	 Gets the rotations of the piece and makes sure the arrays
+	 have a slot for every state.
+	 */
+	private void setUp(Board board, Piece piece) {
+		width = board.getWidth();
+		height = board.getHeight();
+
+		rotationCount = 0;
+		Piece p = piece;
+		do {
+			if (rotationCount == rotations.length) rotations = Arrays.copyOf(rotations, rotationCount * 2);
+			rotations[rotationCount++] = p;
+			p = p.fastRotation();
+		} while (p != piece && p != null);
+
+		int states = rotationCount * width * height;
+		if (visited.length < states) {
+			visited = new int[states];
+			parent = new int[states];
+			verb = new byte[states];
+			queue = new int[states];
+			placements = new int[states];
+			search = 0;
+		}
+	}
+
+	private int id(int rotation, int x, int y) {
+		return (rotation*height + y)*width + x;
+	}
+}
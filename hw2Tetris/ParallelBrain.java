@@ -0,0 +1,162 @@
+// ParallelBrain.java
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ A DefaultBrain that rates the possible plays for a piece in parallel.
+ bestMove() lists every (rotation, x) play in the same order
+ DefaultBrain tries them, then splits that list across a ForkJoinPool.
+ Each leaf task works on its own copy of the board, using the usual
+ place(), rateMove(), undo() cycle, and the leaves are reduced to the
+ lowest score.
+
+ Ties go to the play that comes first in the list, which is the
+ play DefaultBrain would have kept, so both brains always choose
+ the same move. Subclasses may override rateBoard() or rateMove() as
+ with DefaultBrain, but they will be called from several threads at once.
+ One brain should only be asked for one move at a time.
+*/
+public class ParallelBrain extends DefaultBrain {
+	private ForkJoinPool pool;
+
+	// scratch list of plays, reused between calls to bestMove()
+	private Piece[] playPieces = new Piece[64];
+	private int[] playXs = new int[64];
+	private int[] playYs = new int[64];
+
+	/**
+	 Creates a brain that runs on the common ForkJoinPool.
+	*/
+	public ParallelBrain() {
+		this(ForkJoinPool.commonPool());
+	}
+
+	/**
+	 Creates a brain that runs its searches on the given pool.
+	*/
+	public ParallelBrain(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+		if (move==null) move = new Brain.Move();
+
+		board.commit();
+
+		// list the plays in DefaultBrain's order: rotations, then x
+		int count = 0;
+		Piece current = piece;
+		while (true) {
+			final int yBound = limitHeight - current.getHeight()+1;
+			final int xBound = board.getWidth() - current.getWidth()+1;
+
+			for (int x = 0; x<xBound; x++) {
+				int y = board.dropHeight(current, x);
+				if (y<yBound) {
+					if (count == playPieces.length) growPlays();
+					playPieces[count] = current;
+					playXs[count] = x;
+					playYs[count] = y;
+					count++;
+				}
+			}
+
+			current = current.fastRotation();
+			if (current == piece) break;
+		}
+		if (count == 0) return(null);
+
+		// split down to a few leaves per worker
+		int leafSize = Math.max(1, count / (4 * pool.getParallelism()));
+		Best best = pool.invoke(new SearchTask(board, 0, count, leafSize));
+
+		if (best.index < 0) return(null);	// no play fit on the board
+		move.x = playXs[best.index];
+		move.y = playYs[best.index];
+		move.piece = playPieces[best.index];
+		move.score = best.score;
+		return(move);
+	}
+
+	/**
+	 * helper for bestMove(), doubles the scratch play arrays
+	 */
+	private void growPlays() {
+		int size = playPieces.length * 2;
+		playPieces = Arrays.copyOf(playPieces, size);
+		playXs = Arrays.copyOf(playXs, size);
+		playYs = Arrays.copyOf(playYs, size);
+	}
+
+	/*
+	 The best play found by a task: its index in the
+	 play list (-1 if none) and its score.
+	*/
+	private static class Best {
+		int index = -1;
+		double score = 1e20;
+
+		// keeps the lower score, and the lower index on a tie
+		Best min(Best other) {
+			if (other.index < 0) return this;
+			if (index < 0) return other;
+			if (other.score < score || (other.score == score && other.index < index)) return other;
+			return this;
+		}
+	}
+
+	/*
+	 Rates the plays [from, to) of the play list. Splits in half
+	 until the range is leafSize or less, then copies the board
+	 and tries each play on the copy.
+	*/
+	@SuppressWarnings("serial")	// tasks are never serialized
+	private class SearchTask extends RecursiveTask<Best> {
+		private final Board board;
+		private final int from;
+		private final int to;
+		private final int leafSize;
+
+		SearchTask(Board board, int from, int to, int leafSize) {
+			this.board = board;
+			this.from = from;
+			this.to = to;
+			this.leafSize = leafSize;
+		}
+
+		@Override
+		protected Best compute() {
+			if (to - from > leafSize) {
+				int mid = (from + to) >>> 1;
+				SearchTask left = new SearchTask(board, from, mid, leafSize);
+				left.fork();
+				Best right = new SearchTask(board, mid, to, leafSize).compute();
+				return left.join().min(right);
+			}
+
+			Board copy = new Board(board);
+			Best best = new Best();
+			int tried = 0;
+			for (int i = from; i < to; i++) {
+				int result = copy.place(playPieces[i], playXs[i], playYs[i]);
+				if (result <= Board.PLACE_ROW_FILLED) {
+					if (result == Board.PLACE_ROW_FILLED) copy.clearRows();
+
+					double score = rateMove(copy, playPieces[i], playXs[i], playYs[i]);
+					tried++;
+
+					if (score < best.score) {
+						best.score = score;
+						best.index = i;
+					}
+				}
+				copy.undo();
+			}
+			if (TetrisMetrics.ENABLED) TetrisMetrics.candidates(tried);
+			return best;
+		}
+	}
+}
@@ -1,5 +1,6 @@
 // Piece.java
 
+import java.io.*;
 import java.util.*;
 
 /**
@@ -17,6 +18,8 @@ import java.util.*;
  int width = stick.getWidth();		// get its width
  Piece stick2 = stick.fastRotation();	// get the next rotation, fast way
  </pre>
+ Other sets of pieces, such as the pentominoes, can be read from a
+ file with loadPieces() and played with TetrisEngine(width, height, pieces).
 */
 public class Piece {
 	// Starter code specs out a few basic things, leaving
@@ -27,7 +30,17 @@ public class Piece {
 	private int height;
 	private Piece next; // "next" rotation
 
-	static private Piece[] pieces;	// singleton static array of first rotations
+	// primitive geometry tables, so Board never has to walk the TPoints
+	private int[] packed;		// body as sorted (x<<16 | y) values, the canonical form
+	private long[] rowMasks;	// for each y, bit x set if (x, y) is in the body
+	private int[] tops;			// for each x, the highest y in the body + 1
+	private int hash;
+
+	private int id = -1;		// index of the root in getPieces(), -1 for other pieces
+	private int setIndex = -1;	// index of the root in the array it was made for, getPieces() or readPieces()
+	private int rotation;		// number of rotations away from the root
+
+	static private final Piece[] pieces = makePieces();	// singleton static array of first rotations
 
 	/**
 	 Defines a new piece given a TPoint[] array of its body.
@@ -53,6 +66,23 @@ public class Piece {
 		for (int i = 0; i < body.length; i++) {
 			skirt[body[i].x] = Math.min(skirt[body[i].x], body[i].y);
 		}
+
+		packed = new int[body.length];
+		tops = new int[maxX+1];
+		for (int i = 0; i < body.length; i++) {
+			packed[i] = pack(xs[i], ys[i]);
+			tops[xs[i]] = Math.max(tops[xs[i]], ys[i] + 1);
+		}
+		Arrays.sort(packed);
+		hash = Arrays.hashCode(packed);
+
+		// pieces wider than a word have no masks and go the slow way in Board
+		if (maxX < 64) {
+			rowMasks = new long[maxY+1];
+			for (int i = 0; i < body.length; i++) {
+				rowMasks[ys[i]] |= 1L << xs[i];
+			}
+		}
 	}
 	
 	/**
@@ -96,17 +126,94 @@ public class Piece {
 		return skirt;
 	}
 
+	/**
+	 Returns the body in its canonical packed form: one int per block,
+	 x in the high 16 bits and y in the low 16 bits (see packedX()
+	 and packedY()), sorted ascending. Two pieces are equal exactly
+	 when their packed bodies are. The caller should not modify this array.
+	*/
+	public int[] getPackedBody() {
+		return packed;
+	}
+
+	/**
+	 Returns the body as one bitmask per row: bit x of getRowMasks()[y]
+	 is set if (x, y) is in the body. Returns null for a piece more than
+	 64 blocks wide. The caller should not modify this array.
+	*/
+	public long[] getRowMasks() {
+		return rowMasks;
+	}
+
+	/**
+	 Returns the piece's top, the opposite of the skirt:
+	 for each x value across the piece, the highest y value in
+	 the body + 1 (0 if the column is empty). Placing the piece at x, y
+	 raises column x+i to at least y + getColumnTops()[i].
+	 The caller should not modify this array.
+	*/
+	public int[] getColumnTops() {
+		return tops;
+	}
+
+	/**
+	 Returns the index in getPieces() of the piece's root rotation,
+	 or -1 if this piece was not made by getPieces() -- pieces read by
+	 readPieces() included, so an id always means a standard piece.
+	*/
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 Returns the index of the piece's root rotation in the array it
+	 came in: getPieces(), where it is the same as getId(), or the
+	 array returned by readPieces(). -1 for other pieces.
+	*/
+	public int getSetIndex() {
+		return setIndex;
+	}
+
+	/**
+	 Returns how many fastRotation() steps this piece is from
+	 its root rotation (0 for the root itself).
+	*/
+	public int getRotationIndex() {
+		return rotation;
+	}
+
+	/**
+	 Helpers for the packed form, x in the high 16 bits, y in the low.
+	*/
+	public static int pack(int x, int y) {
+		return (x << 16) | y;
+	}
+
+	public static int packedX(int cell) {
+		return cell >>> 16;
+	}
+
+	public static int packedY(int cell) {
+		return cell & 0xFFFF;
+	}
+
 	
 	/**
 	 Returns a new piece that is 90 degrees counter-clockwise
 	 rotated from the receiver.
-	 Three steps: swap x and y, mirror vertically, shift to origin (if possible)
+	 Point (x, y) goes to (maxY - y, x - minX): the swap of x and y,
+	 the mirror and the shift to the origin done in one pass.
 	 */
 	public Piece computeNextRotation() {
-		TPoint[] points = getBody();
-		TPoint[] newPoints = Piece.shiftToOrigin(
-								Piece.mirrorVer(
-									Piece.swapXY(points)));
+		int minX = Integer.MAX_VALUE, maxY = Integer.MIN_VALUE;
+		for (TPoint p: body) {
+			minX = Math.min(minX, p.x);
+			maxY = Math.max(maxY, p.y);
+		}
+		TPoint[] newPoints = new TPoint[body.length];
+		for (int i = 0; i < body.length; i++) {
+			newPoints[i] = new TPoint(maxY - body[i].y, body[i].x - minX);
+		}
 		return new Piece(newPoints);
 	}
 
@@ -129,6 +236,7 @@ public class Piece {
 	 same body arrays, since the points may not be
 	 in the same order in the bodies. Used internally to detect
 	 if two rotations are effectively the same.
+	 Compares the sorted packed bodies, so it allocates nothing.
 	*/
 	@Override
 	public boolean equals(Object obj) {
@@ -140,18 +248,15 @@ public class Piece {
 		if (!(obj instanceof Piece)) return false;
 		
 		Piece other = (Piece)obj;
-		TPoint[] points = getBody();
-		TPoint[] otherPoints = other.getBody();
-		
-		HashSet<Integer> set = new HashSet<>();
-		for (TPoint p: points) set.add(p.x * 10 + p.y);	// hash each x,y pair
-		for (TPoint op: otherPoints) {
-			int hashed = op.x * 10 + op.y;
-			if (!set.contains(hashed)) return false;
-			set.remove(hashed);
-		}
-		
-		return set.isEmpty() ;
+		return hash == other.hash && Arrays.equals(packed, other.packed);
+	}
+
+	/**
+	 Hash of the packed body, consistent with equals().
+	*/
+	@Override
+	public int hashCode() {
+		return hash;
 	}
 
 
@@ -184,23 +289,124 @@ public class Piece {
 	 (provided code)
 	*/
 	public static Piece[] getPieces() {
-		// lazy evaluation -- create static array if needed
-		if (Piece.pieces==null) {
-			// use makeFastRotations() to compute all the rotations for each piece
-			Piece.pieces = new Piece[] {
-				makeFastRotations(new Piece(STICK_STR)),
-				makeFastRotations(new Piece(L1_STR)),
-				makeFastRotations(new Piece(L2_STR)),
-				makeFastRotations(new Piece(S1_STR)),
-				makeFastRotations(new Piece(S2_STR)),
-				makeFastRotations(new Piece(SQUARE_STR)),
-				makeFastRotations(new Piece(PYRAMID_STR)),
-			};
-		}
-		
-		
 		return Piece.pieces;
 	}
+
+	/*
+	 Builds the pieces array once, at class init, so every rotation
+	 and its tables exist before any thread asks for them.
+	 */
+	private static Piece[] makePieces() {
+		// use makeFastRotations() to compute all the rotations for each piece
+		Piece[] roots = new Piece[] {
+			makeFastRotations(new Piece(STICK_STR)),
+			makeFastRotations(new Piece(L1_STR)),
+			makeFastRotations(new Piece(L2_STR)),
+			makeFastRotations(new Piece(S1_STR)),
+			makeFastRotations(new Piece(S2_STR)),
+			makeFastRotations(new Piece(SQUARE_STR)),
+			makeFastRotations(new Piece(PYRAMID_STR)),
+		};
+
+		numberRotations(roots, true);
+		return roots;
+	}
+
+	/*
+	 Sets the set index and rotation index of every rotation of the
+	 roots, and the id too if they are the standard pieces.
+	 */
+	private static void numberRotations(Piece[] roots, boolean standard) {
+		for (int i = 0; i < roots.length; i++) {
+			Piece p = roots[i];
+			int r = 0;
+			do {
+				p.id = standard ? i : -1;
+				p.setIndex = i;
+				p.rotation = r++;
+				p = p.next;
+			} while (p != roots[i]);
+		}
+	}
+
+
+	/**
+	 Reads a set of pieces from the named file, see readPieces().
+	*/
+	public static Piece[] loadPieces(String fileName) throws IOException {
+		try (Reader in = new FileReader(fileName)) {
+			return readPieces(in);
+		}
+	}
+
+	/**
+	 Reads a set of pieces, one per line written as x,y pairs like
+	 the _STR constants, e.g. "0 0  1 0  2 0  1 1  1 2" for a pentomino.
+	 Blank lines and lines starting with # are skipped, the points
+	 may be anywhere (the piece is moved to the origin), and a piece
+	 that is a rotation of an earlier one is left out. Returns the
+	 root pieces with their rotations linked and numbered, like
+	 getPieces() -- their getSetIndex() is their index in this array,
+	 while their getId() is -1, so they are never taken for standard
+	 pieces (by ReplayRecorder or CachingBrain, say).
+	 Throws an IOException naming the line of a bad piece.
+	*/
+	public static Piece[] readPieces(Reader in) throws IOException {
+		BufferedReader reader = new BufferedReader(in);
+		List<Piece> roots = new ArrayList<Piece>();
+		Set<Piece> seen = new HashSet<Piece>();	// every rotation of the roots so far
+		String line;
+		int lineNumber = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNumber++;
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("#")) continue;
+
+			Piece root;
+			try {
+				root = new Piece(toOrigin(parsePoints(line)));
+			}
+			catch (RuntimeException e) {
+				throw new IOException("line " + lineNumber + ": bad piece \"" + line + "\"");
+			}
+			for (int i = 1; i < root.packed.length; i++) {
+				if (root.packed[i] == root.packed[i-1]) throw new IOException("line " + lineNumber + ": repeated block");
+			}
+
+			// the packed bodies are canonical, so a rotation of an earlier
+			// piece is found by hash, and then all of its rotations were seen
+			if (seen.contains(root)) continue;
+			makeFastRotations(root);
+			Piece p = root;
+			do {
+				seen.add(p);
+				p = p.next;
+			} while (p != root);
+			roots.add(root);
+		}
+
+		Piece[] array = roots.toArray(new Piece[0]);
+		numberRotations(array, false);
+		return array;
+	}
+
+	/*
+	 Moves the points so the lowest x and lowest y are 0.
+	 */
+	private static TPoint[] toOrigin(TPoint[] points) {
+		if (points.length == 0) throw new IllegalArgumentException("no blocks");
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+		for (TPoint p: points) {
+			minX = Math.min(minX, p.x);
+			minY = Math.min(minY, p.y);
+		}
+		if (minX == 0 && minY == 0) return points;
+		TPoint[] moved = new TPoint[points.length];
+		for (int i = 0; i < points.length; i++) {
+			moved[i] = new TPoint(points[i].x - minX, points[i].y - minY);
+		}
+		return moved;
+	}
 	
 
 
@@ -259,76 +465,6 @@ public class Piece {
 		return array;
 	}
 	
-	/**
-	 * first step to obtain 90 degree counter clock rotation
-	 * swap the x and y of each point given
-	 * @param points
-	 * @return a new TPoint array
-	 */
-	private static TPoint[] swapXY (TPoint[] points) {
-		TPoint[] res = new TPoint[points.length];
-		for (int i = 0; i < points.length; i++) {
-			res[i] = new TPoint(points[i].y, points[i].x);
-		}
-		return res;
-	}
-
-	/**
-	 * second step to obtain 90 degree counter clock rotation
-	 * mirror (fold) the shape vertically (left->right, right->left)
-	 * @param points
-	 * @return a new TPoint array
-	 */
-	private static TPoint[] mirrorVer (TPoint[] points) {
-		TPoint[] res = new TPoint[points.length];
-		double meanX = 0.0;
-		int tmpMaxX = Integer.MIN_VALUE;
-		for (TPoint p: points) {
-			meanX += p.x;
-			tmpMaxX = Math.max(tmpMaxX, p.x);
-		}
-		if (tmpMaxX != 0) {	// otherwise it is a stick positioned vertically
-			meanX /= tmpMaxX;
-		}
-		
-		for (int i = 0; i < points.length; i++) {
-			int newX = (int) (meanX * 2 - points[i].x);
-			res[i] = new TPoint(newX, points[i].y);
-		}
-		return res;
-	}
-	
-	/**
-	 * third step to obtain 90 degree counter clock rotation
-	 * shift the shape to as left (x) and as low (y) as possible
-	 * then sort by x, then y, ascendingly
-	 * @param points
-	 * @return a new TPoint array
-	 */
-	private static TPoint[] shiftToOrigin (TPoint[] points) {
-		TPoint[] res = new TPoint[points.length];
-		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
-		for (TPoint p: points) {
-			minX = Math.min(minX, p.x);
-			minY = Math.min(minY, p.y);
-		}
-		for (int i = 0; i < points.length; i++) {
-			res[i] = new TPoint(points[i].x - minX, points[i].y - minY);
-		}
-		
-		/*
-		 * no need to sort here, because ordering will be covered in equals()
-		Arrays.sort(res, new Comparator<TPoint>() {
-			@Override
-			public int compare(TPoint p1, TPoint p2) {
-				int res = p1.x - p2.x;
-				return (res != 0) ? res : p1.y - p2.y;
-			}
-		});
-		 */
-		return res;
-	}
-
 	public void setNext(Piece piece) {
 		next = piece;
 	}
@@ -90,4 +90,138 @@ public class PieceTest extends TestCase {
 		assertEquals(square, square.getNext());
 	}
 	
+	// equals() and hashCode() go by the set of points, in any order
+	public void testEqualsAndHash() {
+		Piece a = new Piece("0 0  1 0  1 1  2 0");
+		Piece b = new Piece("2 0  1 1  0 0  1 0");
+		assertEquals(a, b);
+		assertEquals(a.hashCode(), b.hashCode());
+		assertEquals(pyr1, pyr5);
+		assertEquals(pyr1.hashCode(), pyr5.hashCode());
+		assertFalse(pyr1.equals(pyr2));
+		assertFalse(pyr1.equals(null));
+		
+		// (1,0) and (0,10) must not be confused, nor (10,0) and (0,100)
+		assertFalse(new Piece("1 0  0 0").equals(new Piece("0 10  0 0")));
+		assertFalse(new Piece("10 0").equals(new Piece("0 100")));
+	}
+	
+	// The primitive tables agree with the body
+	public void testTables() {
+		assertTrue(Arrays.equals(new long[] {0x7, 0x2}, pyr1.getRowMasks()));
+		assertTrue(Arrays.equals(new int[] {1, 2, 1}, pyr1.getColumnTops()));
+		assertTrue(Arrays.equals(new int[] {Piece.pack(0, 0), Piece.pack(1, 0), Piece.pack(1, 1), Piece.pack(2, 0)},
+				pyr1.getPackedBody()));
+		assertTrue(Arrays.equals(new long[] {0x1, 0x1, 0x1, 0x1}, stickFast.getRowMasks()));
+		assertTrue(Arrays.equals(new long[] {0xF}, stickFast.getNext().getRowMasks()));
+		
+		Piece far = new Piece("70 0  70 1");
+		assertNull(far.getRowMasks());
+		assertEquals(70, Piece.packedX(far.getPackedBody()[0]));
+		assertEquals(1, Piece.packedY(far.getPackedBody()[1]));
+	}
+	
+	// Pieces from getPieces() know which piece and rotation they are
+	public void testIds() {
+		Piece[] pieces = Piece.getPieces();
+		for (int i = 0; i < pieces.length; i++) {
+			Piece p = pieces[i];
+			int r = 0;
+			do {
+				assertEquals(i, p.getId());
+				assertEquals(i, p.getSetIndex());
+				assertEquals(r++, p.getRotationIndex());
+				p = p.fastRotation();
+			} while (p != pieces[i]);
+		}
+		assertEquals(4, l14.getRotationIndex() + 1);
+		assertEquals(-1, pyr1.getId());
+	}
+	
+	// A file of pentominoes loads with rotations linked, numbered and deduplicated
+	public void testReadPieces() throws Exception {
+		String text = "# the 12 pentominoes\n"
+				+ "1 0  1 1  1 2  0 1  2 2\n"		// F
+				+ "0 0  0 1  0 2  0 3  0 4\n"		// I
+				+ "0 0  0 1  0 2  0 3  1 0\n"		// L
+				+ "0 0  0 1  1 1  1 2  1 3\n"		// N
+				+ "0 0  0 1  0 2  1 1  1 2\n"		// P
+				+ "0 2  1 2  2 2  1 1  1 0\n"		// T
+				+ "0 0  0 1  1 0  2 0  2 1\n"		// U
+				+ "0 0  0 1  0 2  1 0  2 0\n"		// V
+				+ "0 0  1 0  1 1  2 1  2 2\n"		// W
+				+ "1 0  0 1  1 1  2 1  1 2\n"		// X
+				+ "0 0  0 1  0 2  0 3  1 2\n"		// Y
+				+ "0 2  1 2  1 1  1 0  2 0\n"		// Z
+				+ "\n"
+				+ "5 3  5 4  5 5  5 6  5 7\n"		// I again, away from the origin
+				+ "0 0  1 0  2 0  2 1  2 2\n";	// V again, rotated
+		Piece[] pieces = Piece.readPieces(new java.io.StringReader(text));
+		assertEquals(12, pieces.length);
+		
+		int rotations = 0;
+		for (int i = 0; i < pieces.length; i++) {
+			Piece p = pieces[i];
+			int r = 0;
+			do {
+				assertEquals(i, p.getSetIndex());
+				assertEquals(-1, p.getId());
+				assertEquals(r++, p.getRotationIndex());
+				assertEquals(5, p.getPackedBody().length);
+				p = p.fastRotation();
+			} while (p != pieces[i]);
+			rotations += r;
+		}
+		assertEquals(2, countRotations(pieces[1]));		// I
+		assertEquals(1, countRotations(pieces[9]));		// X
+		assertEquals(2, countRotations(pieces[11]));	// Z
+		assertEquals(41, rotations);
+		
+		try {
+			Piece.readPieces(new java.io.StringReader("0 0  1 0\n0 0  1\n"));
+			fail("bad line read");
+		}
+		catch (java.io.IOException expected) {
+			assertTrue(expected.getMessage().startsWith("line 2"));
+		}
+	}
+	
+	// Brains play loaded pieces like the standard ones
+	public void testPlayLoadedPieces() throws Exception {
+		Piece[] pieces = Piece.readPieces(new java.io.StringReader("0 0  0 1  0 2  1 1  1 2\n0 0  0 1  0 2  0 3  0 4\n"));
+		TetrisEngine engine = new TetrisEngine(10, 20, pieces);
+		engine.playGame(new LookaheadBrain(2, 2, pieces), new java.util.Random(1), 200);
+		assertTrue(engine.getRowsCleared() > 0);
+	}
+	
+	// Loaded pieces are never taken for the standard pieces they share a set index with
+	public void testLoadedPiecesAreNotStandard() throws Exception {
+		Piece[] pieces = Piece.readPieces(new java.io.StringReader("0 0  0 1  0 2  1 1  1 2\n"));
+		CachingBrain brain = new CachingBrain();
+		Board board = new Board(10, 24);
+		Brain.Move standard = brain.bestMove(board, Piece.getPieces()[0], 20, null);
+		Brain.Move loaded = brain.bestMove(board, pieces[0], 20, null);
+		assertEquals(0, standard.piece.getId());
+		assertEquals(0, loaded.piece.getSetIndex());
+		assertEquals(-1, loaded.piece.getId());
+		
+		TetrisEngine engine = new TetrisEngine(10, 20, pieces);
+		engine.setListener(new ReplayRecorder(engine, new java.io.ByteArrayOutputStream(), null));
+		try {
+			engine.playGame(new DefaultBrain(), new java.util.Random(1), 10);
+			fail("recorded a loaded piece");
+		}
+		catch (IllegalArgumentException expected) {
+		}
+	}
+	
+	private int countRotations(Piece root) {
+		int count = 0;
+		Piece p = root;
+		do {
+			count++;
+			p = p.fastRotation();
+		} while (p != root);
+		return count;
+	}
 }
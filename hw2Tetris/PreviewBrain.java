@@ -0,0 +1,11 @@
+// PreviewBrain.java -- a Brain that can also use the preview piece
+
+public interface PreviewBrain extends Brain {
+    /**
+     Like Brain.bestMove(), but also told the piece that will come after
+     this one (as shown in the preview), so the brain may plan the two
+     together. nextPiece may be null if it is not known, in which case
+     this should behave like the plain bestMove().
+    */
+    public Brain.Move bestMove(Board board, Piece piece, Piece nextPiece, int limitHeight, Brain.Move move);
+}
@@ -0,0 +1,67 @@
+// ReachabilityBrain.java
+
+/**
+ A DefaultBrain that only plays where the piece can really get to,
+ and also plays the tucks and slides under overhangs that straight
+ drops miss: it rates every placement found by a MoveGenerator
+ instead of every dropHeight() drop. The plays are rated with
+ rateMove() as in DefaultBrain, so subclasses may override
+ rateBoard() or rateMove() in the same way.
+
+ After bestMove(), getPath() gives the verbs that take the new
+ piece to the chosen place, e.g. to play it key by key.
+*/
+public class ReachabilityBrain extends DefaultBrain {
+	private final MoveGenerator generator = new MoveGenerator();
+	private int best = -1;		// the placement chosen by the last bestMove()
+
+	@Override
+	public Brain.Move bestMove(Board board, Piece piece, int limitHeight, Brain.Move move) {
+		if (move==null) move = new Brain.Move();
+
+		board.commit();
+		int count = generator.generate(board, piece);
+		int tried = 0;
+		double bestScore = 1e20;
+		best = -1;
+		for (int i = 0; i < count; i++) {
+			Piece current = generator.getPiece(i);
+			int x = generator.getX(i);
+			int y = generator.getY(i);
+			if (y + current.getHeight() > limitHeight) continue;	// piece sticks up too far
+
+			int result = board.place(current, x, y);
+			if (result <= Board.PLACE_ROW_FILLED) {
+				if (result == Board.PLACE_ROW_FILLED) board.clearRows();
+
+				double score = rateMove(board, current, x, y);
+				tried++;
+
+				if (score < bestScore) {
+					bestScore = score;
+					best = i;
+				}
+			}
+			board.undo();
+		}
+		if (TetrisMetrics.ENABLED) TetrisMetrics.candidates(tried);
+
+		if (best < 0) return(null);		// could not find a play at all!
+		move.piece = generator.getPiece(best);
+		move.x = generator.getX(best);
+		move.y = generator.getY(best);
+		move.score = bestScore;
+		return(move);
+	}
+
+	/**
+	 Writes the verbs that take the piece from where it appears to
+	 the move returned by the last bestMove() into the array (see
+	 MoveGenerator.getPath()), and returns how many there are,
+	 or -1 if that bestMove() found no play.
+	*/
+	public int getPath(int[] verbs) {
+		if (best < 0) return -1;
+		return generator.getPath(best, verbs);
+	}
+}
@@ -0,0 +1,138 @@
+// ReplayRecorder.java
+
+import java.io.*;
+
+/**
+ Records the games a TetrisEngine plays into a compact binary log,
+ which Replayer can play back without the engine or any GUI.
+ The recorder is a TetrisEngine.Listener that passes every call on
+ to another listener (e.g. the JTetris showing the game), so it can
+ be slipped in between the engine and its view:
+ <pre>
+ ReplayRecorder recorder = new ReplayRecorder(engine, new FileOutputStream("games.replay"), view);
+ engine.setListener(recorder);
+ </pre>
+ Only where each piece landed is recorded, not every tick, since
+ that is all it takes to rebuild the board. The log format is a
+ sequence of unsigned LEB128 varints:
+ <pre>
+ MAGIC VERSION						once, at the start of the log
+ GAME width height					at the start of each game
+ PIECE + (id*4 + rotation) x y		for each piece that lands
+ END pieces hash					at the end of each game, hash as two 32 bit halves
+ </pre>
+ so a typical piece takes 3 bytes. The END hash is the
+ Board.contentHash() of the board when the last piece landed.
+*/
+public class ReplayRecorder implements TetrisEngine.Listener {
+	// the log format, shared with Replayer
+	static final int MAGIC = 0x54525050;	// "TRPP"
+	static final int VERSION = 1;
+	static final int END = 0;
+	static final int GAME = 1;
+	static final int PIECE = 2;
+
+	private final TetrisEngine engine;
+	private final OutputStream out;
+	private final TetrisEngine.Listener next;
+
+	private Board board;		// the board of the game being recorded
+	private int pieces;			// pieces landed in this game
+	private long hash;			// contentHash() after the last landing
+
+	/**
+	 Creates a recorder for the engine's games, writing to out and
+	 passing the listener calls on to next (which may be null).
+	 The caller installs it with engine.setListener().
+	*/
+	public ReplayRecorder(TetrisEngine engine, OutputStream out, TetrisEngine.Listener next) throws IOException {
+		this.engine = engine;
+		this.out = new BufferedOutputStream(out);
+		this.next = next;
+		writeVarint(this.out, MAGIC);
+		writeVarint(this.out, VERSION);
+	}
+
+	public void pieceMoved(Piece piece, int x, int y) {
+		if (next != null) next.pieceMoved(piece, x, y);
+	}
+
+	public void boardChanged() {
+		if (engine.getBoard() != board) startGame();
+		if (next != null) next.boardChanged();
+	}
+
+	public void pieceLanded(Piece piece, int x, int y) {
+		if (piece.getId() < 0) throw new IllegalArgumentException("only pieces from Piece.getPieces() can be recorded");
+		try {
+			writeVarint(out, PIECE + piece.getId()*4 + piece.getRotationIndex());
+			writeVarint(out, x);
+			writeVarint(out, y);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		pieces++;
+		hash = board.contentHash();
+		if (next != null) next.pieceLanded(piece, x, y);
+	}
+
+	public void rowsCleared(int cleared) {
+		if (next != null) next.rowsCleared(cleared);
+	}
+
+	public void countersChanged() {
+		if (next != null) next.countersChanged();
+	}
+
+	public void gameOver() {
+		if (board != null) {
+			try {
+				writeVarint(out, END);
+				writeVarint(out, pieces);
+				writeVarint(out, (int)(hash >>> 32));
+				writeVarint(out, (int)hash);
+				out.flush();
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			board = null;
+		}
+		if (next != null) next.gameOver();
+	}
+
+	/**
+	 Flushes and closes the log. A game still being played is not recorded.
+	*/
+	public void close() throws IOException {
+		out.close();
+	}
+
+	// a new board means a new game
+	private void startGame() {
+		board = engine.getBoard();
+		pieces = 0;
+		hash = board.contentHash();
+		try {
+			writeVarint(out, GAME);
+			writeVarint(out, board.getWidth());
+			writeVarint(out, board.getHeight());
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 Writes the int, taken as unsigned, as a LEB128 varint:
+	 7 bits per byte, low bits first, high bit set on all but the last byte.
+	*/
+	static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.write((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+}
@@ -0,0 +1,140 @@
+// Replayer.java
+/*
+ Plays back logs written by ReplayRecorder, placing each recorded
+ piece straight into a Board -- no engine, no brain, no GUI -- and
+ checks that each game ends with the recorded board hash. Used to
+ re-run recorded games as a regression test after a Board change,
+ and to rebuild the exact board of a bug report.
+
+ Usage: java Replayer file...
+ Prints totals and exits with status 1 if any game did not match.
+*/
+import java.io.*;
+
+public class Replayer {
+	private final InputStream in;
+	private final Piece[] byKey;	// piece for each id*4 + rotation
+
+	private Board board;
+	private int pieces;			// pieces placed in the current game
+	private int rowsCleared;	// rows cleared in the current game
+
+	/**
+	 Creates a replayer for the log on the given stream, checking its header.
+	*/
+	public Replayer(InputStream in) throws IOException {
+		this.in = new BufferedInputStream(in);
+		if (readVarint(this.in) != ReplayRecorder.MAGIC) throw new IOException("not a replay log");
+		int version = readVarint(this.in);
+		if (version != ReplayRecorder.VERSION) throw new IOException("unknown replay log version " + version);
+
+		Piece[] roots = Piece.getPieces();
+		byKey = new Piece[roots.length * 4];
+		for (Piece root: roots) {
+			Piece p = root;
+			do {
+				byKey[p.getId()*4 + p.getRotationIndex()] = p;
+				p = p.fastRotation();
+			} while (p != root);
+		}
+	}
+
+	/**
+	 Replays the next game in the log. Returns false if there are no
+	 more games, or true if a game was replayed and ended with the
+	 recorded board. Throws an IOException if a recorded piece does not
+	 fit, or the game ends with a different board, or the log is bad.
+	*/
+	public boolean replayGame() throws IOException {
+		int tag = in.read();
+		if (tag < 0) return false;
+		if (tag != ReplayRecorder.GAME) throw new IOException("expected a game, found tag " + tag);
+		board = new Board(readVarint(in), readVarint(in));
+		pieces = 0;
+		rowsCleared = 0;
+
+		while (true) {
+			tag = readVarint(in);
+			if (tag == ReplayRecorder.END) break;
+
+			int key = tag - ReplayRecorder.PIECE;
+			if (key < 0 || key >= byKey.length || byKey[key] == null) throw new IOException("bad piece " + key);
+			int x = readVarint(in);
+			int y = readVarint(in);
+
+			int result = board.place(byKey[key], x, y);
+			if (result > Board.PLACE_ROW_FILLED) {
+				throw new IOException("piece " + pieces + " (" + byKey[key] + " at " + x + "," + y + ") does not fit");
+			}
+			rowsCleared += board.clearRows();
+			board.commit();
+			pieces++;
+		}
+
+		int count = readVarint(in);
+		long hash = ((long)readVarint(in) << 32) | (readVarint(in) & 0xFFFFFFFFL);
+		if (count != pieces) throw new IOException("expected " + count + " pieces, found " + pieces);
+		if (hash != board.contentHash()) throw new IOException("board hash differs after " + pieces + " pieces");
+		return true;
+	}
+
+	/**
+	 The board of the last game replayed, as it ended.
+	*/
+	public Board getBoard() {
+		return board;
+	}
+
+	public int getPieces() {
+		return pieces;
+	}
+
+	public int getRowsCleared() {
+		return rowsCleared;
+	}
+
+	/**
+	 Reads a LEB128 varint written by ReplayRecorder.writeVarint().
+	*/
+	static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.read();
+			if (b < 0) throw new EOFException("replay log ends in the middle of a record");
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) return value;
+		}
+		throw new IOException("varint too long");
+	}
+
+	public static void main(String[] args) throws IOException {
+		long games = 0;
+		long pieces = 0;
+		long rows = 0;
+		int failed = 0;
+		long start = System.nanoTime();
+		for (String fileName: args) {
+			try (InputStream in = new FileInputStream(fileName)) {
+				Replayer replayer = new Replayer(in);
+				while (true) {
+					try {
+						if (!replayer.replayGame()) break;
+					}
+					catch (IOException e) {
+						System.out.println(fileName + " game " + games + ": " + e.getMessage());
+						failed++;
+						break;	// the rest of the file cannot be trusted
+					}
+					games++;
+					pieces += replayer.getPieces();
+					rows += replayer.getRowsCleared();
+				}
+			}
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println(games + " games, " + pieces + " pieces, " + rows + " rows cleared, " + failed + " failed");
+		System.out.printf("%.2f seconds, %.0f pieces/sec%n", seconds, pieces / seconds);
+		if (failed > 0) System.exit(1);
+	}
+}
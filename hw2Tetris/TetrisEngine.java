@@ -0,0 +1,556 @@
+// TetrisEngine.java
+
+import java.util.Random;
+
+/**
+ The CS108 Tetris game itself, without any drawing.
+ TetrisEngine owns the Board, the random piece stream, the falling
+ piece and the score, and implements the rules: tick() moves the
+ falling piece by one verb, a piece that cannot move DOWN twice in a row
+ lands, full rows are cleared and scored, and the game ends when the
+ board gets too tall.
+
+ JTetris is a view over an engine: it forwards keys and timer ticks
+ to tick(), and redraws when the engine calls its Listener.
+ Without a listener the engine runs headless -- playGame() lets a
+ Brain drop every piece straight into place as fast as the CPU allows.
+
+ Clearing 1-4 rows scores 5, 10, 20, 40 points, and every piece
+ added scores 1.
+*/
+public class TetrisEngine {
+	// size of the standard board in blocks
+	public static final int WIDTH = 10;
+	public static final int HEIGHT = 20;
+
+	// Extra blocks at the top for pieces to start.
+	// If a piece is sticking up into this area
+	// when it has landed -- game over!
+	public static final int TOP_SPACE = 4;
+
+	// The verbs for tick()
+	public static final int ROTATE = 0;
+	public static final int LEFT = 1;
+	public static final int RIGHT = 2;
+	public static final int DROP = 3;
+	public static final int DOWN = 4;
+
+	/**
+	 Callbacks that let a view follow the game.
+	 The engine calls these as the game changes; all of
+	 them are made on the thread that drives the engine.
+	*/
+	public interface Listener {
+		/** The piece has been drawn into or taken out of the board at x,y. */
+		public void pieceMoved(Piece piece, int x, int y);
+
+		/** Much of the board has changed, e.g. rows are full or cleared. */
+		public void boardChanged();
+
+		/**
+		 The piece has landed at x,y and is now part of the board, and any
+		 full rows have been cleared (so x,y is where it was before that).
+		 Called before rowsCleared().
+		*/
+		public void pieceLanded(Piece piece, int x, int y);
+
+		/** A piece landed and cleared the given number of rows (at least 1). */
+		public void rowsCleared(int cleared);
+
+		/** The piece count or the score changed. */
+		public void countersChanged();
+
+		/** The game has ended, or was stopped. */
+		public void gameOver();
+	}
+
+	private int width;
+	private int height;		// height of the playing area, not counting TOP_SPACE
+	private Piece[] pieces;
+	private Listener listener;
+
+	// Board data structures
+	private Board board;
+
+	// The current piece in play or null
+	private Piece currentPiece;
+	private int currentX;
+	private int currentY;
+	private boolean moved;	// did the player move the piece
+
+	// The piece we're thinking about playing
+	// -- set by computeNewPosition
+	private Piece newPiece;
+	private int newX;
+	private int newY;
+
+	// State of the game
+	private boolean gameOn;		// true if we are playing
+	private int count;			// how many pieces played so far
+	private int landed;			// how many of them have landed
+	private int score;
+	private int rowsCleared;	// rows cleared so far
+	private int pieceLimit;		// stop after this many pieces, 0 for no limit
+	private Random random;		// the random generator for new pieces
+	private Piece nextPiece;	// the piece after the current one, or null
+
+	/**
+	 Creates an engine for the standard board and pieces.
+	*/
+	public TetrisEngine() {
+		this(WIDTH, HEIGHT, Piece.getPieces());
+	}
+
+	/**
+	 Creates an engine whose playing area is width x height blocks
+	 (plus TOP_SPACE above), using the given root pieces.
+	*/
+	public TetrisEngine(int width, int height, Piece[] pieces) {
+		this.width = width;
+		this.height = height;
+		this.pieces = pieces;
+		board = new Board(width, height + TOP_SPACE);
+	}
+
+	/**
+	 Sets the listener told about changes to the game, or null for none.
+	*/
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 Makes the game stop once the given number of pieces
+	 have been played; 0 means no limit.
+	*/
+	public void setPieceLimit(int pieceLimit) {
+		this.pieceLimit = pieceLimit;
+	}
+
+	public Board getBoard() {
+		return board;
+	}
+
+	public boolean isGameOn() {
+		return gameOn;
+	}
+
+	/**
+	 Returns how many pieces have been added, including the falling one.
+	*/
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 Returns how many pieces have landed. Unlike getCount(), this
+	 leaves out the falling piece, and the piece added when the game
+	 stopped at its piece limit or could not fit the piece in.
+	*/
+	public int getLanded() {
+		return landed;
+	}
+
+	public int getScore() {
+		return score;
+	}
+
+	public int getRowsCleared() {
+		return rowsCleared;
+	}
+
+	public Piece getCurrentPiece() {
+		return currentPiece;
+	}
+
+	public int getCurrentX() {
+		return currentX;
+	}
+
+	public int getCurrentY() {
+		return currentY;
+	}
+
+	/**
+	 Returns the piece that will come after the current one.
+	*/
+	public Piece getNextPiece() {
+		return nextPiece;
+	}
+
+	/**
+	 Returns the height pieces must land under to keep the game going,
+	 the limitHeight passed to brains.
+	*/
+	public int getLimitHeight() {
+		return height;
+	}
+
+
+	/**
+	 Starts a new game on an empty board, drawing pieces
+	 from the given random generator.
+	*/
+	public void startGame(Random random) {
+		// cheap way to reset the board state
+		board = new Board(width, height + TOP_SPACE);
+		currentPiece = null;
+		moved = false;
+
+		count = 0;
+		landed = 0;
+		score = 0;
+		rowsCleared = 0;
+		gameOn = true;
+		this.random = random;
+		nextPiece = null;
+
+		if (listener != null) listener.boardChanged();
+		addNewPiece();
+	}
+
+	/**
+	 Stops the game.
+	*/
+	public void stopGame() {
+		gameOn = false;
+		if (listener != null) listener.gameOver();
+	}
+
+
+	/**
+	 Given a piece, tries to install that piece
+	 into the board and set it to be the current piece.
+	 If the placement is not possible, then the placement
+	 is undone, and the board is not changed. The board
+	 should be in the committed state when this is called.
+	 Returns the same error code as Board.place().
+	*/
+	public int setCurrent(Piece piece, int x, int y) {
+		int result = board.place(piece, x, y);
+
+		if (result <= Board.PLACE_ROW_FILLED) { // SUCESS
+			// the rect where it used to be
+			if (currentPiece != null && listener != null) listener.pieceMoved(currentPiece, currentX, currentY);
+			currentPiece = piece;
+			currentX = x;
+			currentY = y;
+			// the rect where it is now
+			if (listener != null) listener.pieceMoved(currentPiece, currentX, currentY);
+		}
+		else {
+			board.undo();
+		}
+
+		return(result);
+	}
+
+
+	/**
+	 Selects the next piece to use using the random generator
+	 passed to startGame(). The piece after that one is picked
+	 at the same time and kept in nextPiece, so brains can see
+	 one piece ahead; the sequence of pieces is unchanged.
+	*/
+	public Piece pickNextPiece() {
+		if (nextPiece == null) nextPiece = randomPiece();
+
+		Piece piece = nextPiece;
+		nextPiece = randomPiece();
+
+		return(piece);
+	}
+
+	/**
+	 Draws one piece from the random generator.
+	*/
+	private Piece randomPiece() {
+		int pieceNum;
+
+		pieceNum = (int) (pieces.length * random.nextDouble());
+
+		Piece piece	 = pieces[pieceNum];
+
+		return(piece);
+	}
+
+
+	/**
+	 Tries to add a new random piece at the top of the board.
+	 Ends the game if it's not possible.
+	*/
+	public void addNewPiece() {
+		count++;
+		score++;
+
+		if (pieceLimit > 0 && count == pieceLimit+1) {
+			 stopGame();
+			 return;
+		}
+
+		// commit things the way they are
+		board.commit();
+		currentPiece = null;
+
+		Piece piece = pickNextPiece();
+
+		// Center it up at the top
+		int px = (board.getWidth() - piece.getWidth())/2;
+		int py = board.getHeight() - piece.getHeight();
+
+		// add the new piece to be in play
+		int result = setCurrent(piece, px, py);
+
+		// This probably never happens, since
+		// the blocks at the top allow space
+		// for new pieces to at least be added.
+		if (result>Board.PLACE_ROW_FILLED) {
+			stopGame();
+		}
+
+		if (listener != null) listener.countersChanged();
+	}
+
+
+	/**
+	 Figures a new position for the current piece
+	 based on the given verb (LEFT, RIGHT, ...).
+	 The board should be in the committed state --
+	 i.e. the piece should not be in the board at the moment.
+	 This is necessary so dropHeight() may be called without
+	 the piece "hitting itself" on the way down.
+
+	 Sets the ivars newX, newY, and newPiece to hold
+	 what it thinks the new piece position should be.
+	 (Storing an intermediate result like that in
+	 ivars is a little tacky.)
+	*/
+	public void computeNewPosition(int verb) {
+		// As a starting point, the new position is the same as the old
+		newPiece = currentPiece;
+		newX = currentX;
+		newY = currentY;
+
+		// Make changes based on the verb
+		switch (verb) {
+			case LEFT: newX--; break;
+
+			case RIGHT: newX++; break;
+
+			case ROTATE:
+				newPiece = newPiece.fastRotation();
+
+				// tricky: make the piece appear to rotate about its center
+				// can't just leave it at the same lower-left origin as the
+				// previous piece.
+				newX = newX + (currentPiece.getWidth() - newPiece.getWidth())/2;
+				newY = newY + (currentPiece.getHeight() - newPiece.getHeight())/2;
+				break;
+
+			case DOWN: newY--; break;
+
+			case DROP:
+			 newY = board.dropHeight(newPiece, newX);
+
+			 // trick: avoid the case where the drop would cause
+			 // the piece to appear to move up
+			 if (newY > currentY) {
+				 newY = currentY;
+			 }
+			 break;
+
+			default:
+				 throw new RuntimeException("Bad verb");
+		}
+
+	}
+
+
+	/**
+	 Called to change the position of the current piece.
+	 Each key press calls this once with the verbs
+	 LEFT RIGHT ROTATE DROP for the user moves,
+	 and the timer calls it with the verb DOWN to move
+	 the piece down one square.
+
+	 Before this is called, the piece is at some location in the board.
+	 This advances the piece to be at its next location.
+	*/
+	public void tick(int verb) {
+		if (!gameOn) return;
+
+		if (currentPiece != null) {
+			board.undo();	// remove the piece from its old position
+		}
+
+		// Sets the newXXX ivars
+		computeNewPosition(verb);
+
+		// try out the new position (rolls back if it doesn't work)
+		int result = setCurrent(newPiece, newX, newY);
+
+		// if row clearing is going to happen, show
+		// the whole board so the full row shows up
+		if (result ==  Board.PLACE_ROW_FILLED) {
+			if (listener != null) listener.boardChanged();
+		}
+
+
+		boolean failed = (result >= Board.PLACE_OUT_BOUNDS);
+
+		// if it didn't work, put it back the way it was
+		if (failed) {
+			if (currentPiece != null) {
+				board.place(currentPiece, currentX, currentY);
+				if (listener != null) listener.pieceMoved(currentPiece, currentX, currentY);
+			}
+		}
+
+		/*
+		 How to detect when a piece has landed:
+		 if this move hits something on its DOWN verb,
+		 and the previous verb was also DOWN (i.e. the player was not
+		 still moving it),	then the previous position must be the correct
+		 "landed" position, so we're done with the falling of this piece.
+		*/
+		if (failed && verb==DOWN && !moved) {	// it's landed
+			landPiece();
+		}
+
+		// Note if the player made a successful non-DOWN move --
+		// used to detect if the piece has landed on the next tick()
+		moved = (!failed && verb!=DOWN);
+	}
+
+
+	/**
+	 Asks the brain where the current piece should go and moves
+	 it straight there, without landing it -- the next DOWN tick
+	 will land it. Preview brains are told the next piece too.
+	 Returns the brain's move, or null if the brain found no play
+	 (the piece is then left where it was).
+	*/
+	public Brain.Move moveToBest(Brain brain, Brain.Move move) {
+		if (!gameOn || currentPiece == null) return(null);
+
+		board.undo();	// take the piece out so the brain sees the landed blocks
+
+		long start = TetrisMetrics.ENABLED ? System.nanoTime() : 0;
+		Brain.Move best;
+		if (brain instanceof PreviewBrain) {
+			best = ((PreviewBrain)brain).bestMove(board, currentPiece, nextPiece, getLimitHeight(), move);
+		}
+		else {
+			best = brain.bestMove(board, currentPiece, getLimitHeight(), move);
+		}
+		if (TetrisMetrics.ENABLED) TetrisMetrics.move(System.nanoTime() - start);
+
+		if (best == null || setCurrent(best.piece, best.x, best.y) > Board.PLACE_ROW_FILLED) {
+			board.place(currentPiece, currentX, currentY);	// put it back
+			return(null);
+		}
+		return(best);
+	}
+
+
+	/**
+	 Moves the current piece straight to x,y as the given piece
+	 (a rotation of it), e.g. where a brain running on another
+	 thread said to play it. Like moveToBest(), the piece is not
+	 landed. Returns false, leaving the piece where it was,
+	 if there is no current piece or it does not fit there.
+	*/
+	public boolean moveTo(Piece piece, int x, int y) {
+		if (!gameOn || currentPiece == null) return(false);
+
+		board.undo();
+		if (setCurrent(piece, x, y) > Board.PLACE_ROW_FILLED) {
+			board.place(currentPiece, currentX, currentY);	// put it back
+			return(false);
+		}
+		return(true);
+	}
+
+
+	/**
+	 Returns a copy of the board as a brain should see it, without
+	 the current piece. The copy can be handed to another thread.
+	*/
+	public Board copyLandedBoard() {
+		if (currentPiece == null) return new Board(board);
+
+		board.undo();
+		Board copy = new Board(board);
+		board.place(currentPiece, currentX, currentY);
+		return copy;
+	}
+
+
+	/**
+	 Plays the current piece where the brain says and lands it
+	 at once, then adds the next piece. Ends the game if the
+	 brain finds no play. Returns the brain's move, or null.
+	*/
+	public Brain.Move dropPiece(Brain brain, Brain.Move move) {
+		Brain.Move best = moveToBest(brain, move);
+		if (best == null) {
+			if (gameOn) stopGame();
+			return(null);
+		}
+		landPiece();
+		return(best);
+	}
+
+
+	/**
+	 Plays a whole game headless with the given brain: starts a game
+	 with the random generator and drops pieces until the game ends
+	 or maxPieces (0 for no limit) pieces have been played.
+	*/
+	public void playGame(Brain brain, Random random, int maxPieces) {
+		setPieceLimit(maxPieces);
+		startGame(random);
+
+		Brain.Move move = new Brain.Move();
+		while (gameOn) {
+			dropPiece(brain, move);
+		}
+	}
+
+
+	/**
+	 The current piece has landed: clears and scores rows,
+	 then either ends the game or adds the next piece.
+	*/
+	private void landPiece() {
+		landed++;
+		int cleared = board.clearRows();
+		if (listener != null) listener.pieceLanded(currentPiece, currentX, currentY);
+		if (cleared > 0) {
+			rowsCleared += cleared;
+
+			// score goes up by 5, 10, 20, 40 for row clearing
+			switch (cleared) {
+				case 1: score += 5;	 break;
+				case 2: score += 10;  break;
+				case 3: score += 20;  break;
+				case 4: score += 40; break;
+				default: score += 50;  // could happen with non-standard pieces
+			}
+			if (listener != null) {
+				listener.rowsCleared(cleared);
+				listener.countersChanged();
+			}
+		}
+
+
+		// if the board is too tall, we've lost
+		if (board.getMaxHeight() > board.getHeight() - TOP_SPACE) {
+			stopGame();
+		}
+		// Otherwise add a new piece and keep playing
+		else {
+			addNewPiece();
+		}
+	}
+}
@@ -0,0 +1,240 @@
+// TetrisMetrics.java
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ Counters for the work done by Boards and Brains: place(), undo()
+ and clearRows() calls, rows cleared, time in sanityCheck(), and
+ for each bestMove() its latency and the plays it rated.
+
+ Metrics are off unless the JVM is started with -Dtetris.metrics=true.
+ ENABLED is a static final, and every recording call is guarded
+ with it, e.g.
+ <pre>
+ if (TetrisMetrics.ENABLED) TetrisMetrics.place();
+ </pre>
+ so with metrics off the JIT drops the calls altogether.
+ The counters are LongAdders, striped across threads, so the
+ threads of a ParallelBrain or a BrainTuner do not fight over them.
+
+ When enabled, the metrics are registered as the JMX MBean
+ "hw2Tetris:type=TetrisMetrics" (see them in jconsole), and
+ -Dtetris.metrics.dump=seconds also prints dump() that often.
+*/
+public class TetrisMetrics implements TetrisMetricsMBean {
+	public static final boolean ENABLED = Boolean.getBoolean("tetris.metrics");
+
+	public static final String OBJECT_NAME = "hw2Tetris:type=TetrisMetrics";
+
+	// bestMove() latency bucket b counts times of 2^(b-1) up to 2^b nanoseconds
+	private static final int BUCKETS = 40;
+
+	private static final LongAdder places = new LongAdder();
+	private static final LongAdder undos = new LongAdder();
+	private static final LongAdder clearRowsCalls = new LongAdder();
+	private static final LongAdder rowsCleared = new LongAdder();
+	private static final LongAdder sanityChecks = new LongAdder();
+	private static final LongAdder sanityNanos = new LongAdder();
+	private static final LongAdder moves = new LongAdder();
+	private static final LongAdder moveNanos = new LongAdder();
+	private static final LongAdder candidates = new LongAdder();
+	private static final LongAdder[] moveBuckets = new LongAdder[BUCKETS];
+
+	private static final TetrisMetrics INSTANCE = new TetrisMetrics();
+
+	static {
+		for (int b = 0; b < BUCKETS; b++) moveBuckets[b] = new LongAdder();
+		if (ENABLED) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+			}
+			catch (Exception e) {
+				System.err.println("Could not register " + OBJECT_NAME + ": " + e);
+			}
+			int seconds = Integer.getInteger("tetris.metrics.dump", 0);
+			if (seconds > 0) startDump(seconds, System.err);
+		}
+	}
+
+	/**
+	 Returns the one TetrisMetrics, the MBean.
+	*/
+	public static TetrisMetrics getInstance() {
+		return INSTANCE;
+	}
+
+
+	// Recording -- call these only if ENABLED
+
+	public static void place() {
+		places.increment();
+	}
+
+	public static void undo() {
+		undos.increment();
+	}
+
+	public static void clearRows(int cleared) {
+		clearRowsCalls.increment();
+		rowsCleared.add(cleared);
+	}
+
+	public static void sanityCheck(long nanos) {
+		sanityChecks.increment();
+		sanityNanos.add(nanos);
+	}
+
+	/**
+	 Records a bestMove() call that took the given time.
+	*/
+	public static void move(long nanos) {
+		moves.increment();
+		moveNanos.add(nanos);
+		moveBuckets[Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+	}
+
+	/**
+	 Records that a brain rated the given number of plays.
+	*/
+	public static void candidates(int count) {
+		candidates.add(count);
+	}
+
+
+	/**
+	 Prints dump() to out every given number of seconds,
+	 on a daemon thread.
+	*/
+	public static ScheduledExecutorService startDump(int seconds, final PrintStream out) {
+		ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics dump");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		timer.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				out.print(INSTANCE.dump());
+			}
+		}, seconds, seconds, TimeUnit.SECONDS);
+		return timer;
+	}
+
+
+	// The MBean view
+
+	public boolean isEnabled() {
+		return ENABLED;
+	}
+
+	public long getPlaces() {
+		return places.sum();
+	}
+
+	public long getUndos() {
+		return undos.sum();
+	}
+
+	public long getClearRowsCalls() {
+		return clearRowsCalls.sum();
+	}
+
+	public long getRowsCleared() {
+		return rowsCleared.sum();
+	}
+
+	public long getSanityChecks() {
+		return sanityChecks.sum();
+	}
+
+	public double getSanityCheckMillis() {
+		return sanityNanos.sum() / 1e6;
+	}
+
+	public long getMoves() {
+		return moves.sum();
+	}
+
+	public long getCandidates() {
+		return candidates.sum();
+	}
+
+	public double getCandidatesPerMove() {
+		long count = moves.sum();
+		return (count == 0) ? 0 : ((double)candidates.sum()) / count;
+	}
+
+	public double getMoveMeanMicros() {
+		long count = moves.sum();
+		return (count == 0) ? 0 : moveNanos.sum() / 1e3 / count;
+	}
+
+	public double getMoveP50Micros() {
+		return movePercentile(50) / 1e3;
+	}
+
+	public double getMoveP99Micros() {
+		return movePercentile(99) / 1e3;
+	}
+
+	/*
+	 Returns the bestMove() time that p percent of moves were within,
+	 to the histogram's resolution: the top of the bucket it falls in.
+	 */
+	private long movePercentile(double p) {
+		long[] counts = bucketCounts();
+		long total = 0;
+		for (long c: counts) total += c;
+		if (total == 0) return 0;
+		long rank = (long) Math.ceil(p / 100 * total);
+		long seen = 0;
+		for (int b = 0; b < BUCKETS; b++) {
+			seen += counts[b];
+			if (seen >= rank) return 1L << b;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	private long[] bucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for (int b = 0; b < BUCKETS; b++) counts[b] = moveBuckets[b].sum();
+		return counts;
+	}
+
+	public void reset() {
+		places.reset();
+		undos.reset();
+		clearRowsCalls.reset();
+		rowsCleared.reset();
+		sanityChecks.reset();
+		sanityNanos.reset();
+		moves.reset();
+		moveNanos.reset();
+		candidates.reset();
+		for (LongAdder bucket: moveBuckets) bucket.reset();
+	}
+
+	public String dump() {
+		StringBuilder buff = new StringBuilder();
+		buff.append(String.format("tetris metrics%s%n", ENABLED ? "" : " (disabled)"));
+		buff.append(String.format("  board: %d place, %d undo, %d clearRows, %d rows cleared%n",
+				getPlaces(), getUndos(), getClearRowsCalls(), getRowsCleared()));
+		buff.append(String.format("  sanityCheck: %d calls, %.1f ms%n", getSanityChecks(), getSanityCheckMillis()));
+		buff.append(String.format("  bestMove: %d calls, %.1f candidates/move, mean %.1f us, p50 %.1f us, p99 %.1f us%n",
+				getMoves(), getCandidatesPerMove(), getMoveMeanMicros(), getMoveP50Micros(), getMoveP99Micros()));
+		long[] counts = bucketCounts();
+		for (int b = 0; b < BUCKETS; b++) {
+			if (counts[b] > 0) buff.append(String.format("    <= %10.1f us: %d%n", (1L << b) / 1e3, counts[b]));
+		}
+		return buff.toString();
+	}
+}
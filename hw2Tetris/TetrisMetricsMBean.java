@@ -0,0 +1,26 @@
+// TetrisMetricsMBean.java -- the JMX view of TetrisMetrics
+
+public interface TetrisMetricsMBean {
+    public boolean isEnabled();
+
+    public long getPlaces();
+    public long getUndos();
+    public long getClearRowsCalls();
+    public long getRowsCleared();
+
+    public long getSanityChecks();
+    public double getSanityCheckMillis();
+
+    public long getMoves();
+    public long getCandidates();
+    public double getCandidatesPerMove();
+    public double getMoveMeanMicros();
+    public double getMoveP50Micros();
+    public double getMoveP99Micros();
+
+    /** Sets all the counters back to 0. */
+    public void reset();
+
+    /** Returns the counters and the bestMove() histogram as text. */
+    public String dump();
+}
@@ -0,0 +1,106 @@
+// WeightedBrain.java
+
+import java.io.*;
+import java.util.Arrays;
+
+/**
+ A DefaultBrain whose rateBoard() is a weighted sum of board
+ features, with the weights given as a vector rather than made up
+ numbers in the code. The features are the ones the Board keeps
+ up to date itself, so rating is still O(1):
+ <pre>
+ 0 maxHeight		height of the tallest column
+ 1 avgHeight		average column height
+ 2 holes			empty blocks with a filled block above them
+ 3 bumpiness		sum of height differences of adjacent columns
+ 4 wells			sum of the well depths of the columns
+ </pre>
+ The default weights are DefaultBrain's 8, 40, 1.25, 0, 0, so
+ a WeightedBrain with no arguments plays exactly like DefaultBrain.
+ BrainTuner searches for better weights and saves them in a file
+ that load() reads back, one "name value" line per feature.
+*/
+public class WeightedBrain extends DefaultBrain {
+	public static final String[] FEATURES = { "maxHeight", "avgHeight", "holes", "bumpiness", "wells" };
+	public static final double[] DEFAULT_WEIGHTS = { 8, 40, 1.25, 0, 0 };
+
+	// the file BrainTuner writes and JBrainTetris reads unless told otherwise
+	public static final String WEIGHTS_FILE = "brain.weights";
+
+	private final double[] weights;
+
+	/**
+	 Creates a brain with the DEFAULT_WEIGHTS.
+	*/
+	public WeightedBrain() {
+		this(DEFAULT_WEIGHTS);
+	}
+
+	/**
+	 Creates a brain with the given weights, one per FEATURES entry.
+	 Makes its own copy of the array.
+	*/
+	public WeightedBrain(double[] weights) {
+		if (weights.length != FEATURES.length) {
+			throw new IllegalArgumentException("expected " + FEATURES.length + " weights, got " + weights.length);
+		}
+		this.weights = weights.clone();
+	}
+
+	/**
+	 Returns a copy of the weights.
+	*/
+	public double[] getWeights() {
+		return weights.clone();
+	}
+
+	@Override
+	public double rateBoard(Board board) {
+		double avgHeight = ((double)board.getAggregateHeight())/board.getWidth();
+		return weights[0]*board.getMaxHeight() + weights[1]*avgHeight + weights[2]*board.getHoles()
+				+ weights[3]*board.getBumpiness() + weights[4]*board.getWellSum();
+	}
+
+	/**
+	 Writes the weights to the given file, one "name value" line each.
+	*/
+	public void save(String fileName) throws IOException {
+		try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+			out.println("# WeightedBrain weights");
+			for (int i = 0; i < FEATURES.length; i++) {
+				out.println(FEATURES[i] + " " + weights[i]);
+			}
+		}
+	}
+
+	/**
+	 Reads a brain from a file written by save(). Blank lines and
+	 lines starting with # are skipped; features not mentioned
+	 get weight 0.
+	*/
+	public static WeightedBrain load(String fileName) throws IOException {
+		double[] weights = new double[FEATURES.length];
+		try (BufferedReader in = new BufferedReader(new FileReader(fileName))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				line = line.trim();
+				if (line.isEmpty() || line.startsWith("#")) continue;
+				String[] parts = line.split("\\s+");
+				int i = Arrays.asList(FEATURES).indexOf(parts[0]);
+				if (i < 0 || parts.length != 2) throw new IOException("bad weights line: " + line);
+				try {
+					weights[i] = Double.parseDouble(parts[1]);
+				}
+				catch (NumberFormatException e) {
+					throw new IOException("bad weights line: " + line);
+				}
+			}
+		}
+		return new WeightedBrain(weights);
+	}
+
+	@Override
+	public String toString() {
+		return "WeightedBrain" + Arrays.toString(weights);
+	}
+}
@@ -0,0 +1,78 @@
+// BenchBoards.java
+/*
+ Builds the boards the benchmarks run on. A "fill" of 0 is an empty
+ board; otherwise random pieces are dropped at random spots (leaving the
+ holes and ragged surface of a real game) until the stack is about that
+ fraction of the playing area high. Seeded, so every run and every fork
+ measures the same boards.
+*/
+import java.util.Random;
+
+public class BenchBoards {
+	// Extra space above the playing area, as in TetrisEngine
+	public static final int TOP_SPACE = TetrisEngine.TOP_SPACE;
+
+	/**
+	 Returns a committed board width wide with a playing area
+	 height high, filled to about the given fraction of height.
+	*/
+	public static Board make(int width, int height, double fill, long seed) {
+		Board board = new Board(width, height + TOP_SPACE);
+		int target = (int) Math.round(fill * height);
+		if (target == 0) return board;
+
+		Piece[] pieces = Piece.getPieces();
+		Random random = new Random(seed);
+		for (int tries = 0; tries < 100000 && board.getMaxHeight() < target; tries++) {
+			Piece piece = pieces[random.nextInt(pieces.length)];
+			for (int r = random.nextInt(4); r > 0; r--) piece = piece.fastRotation();
+			if (piece.getWidth() > width) continue;
+
+			int x = random.nextInt(width - piece.getWidth() + 1);
+			int y = board.dropHeight(piece, x);
+			if (y + piece.getHeight() > target) continue;
+
+			board.place(piece, x, y);
+			board.clearRows();
+			board.commit();
+		}
+		return board;
+	}
+
+	/**
+	 Returns a committed board whose bottom "rows" rows are full except
+	 for column 0, with a random stack above them; placing
+	 stick(rows) at x = 0, y = 0 then fills all of those rows.
+	*/
+	public static Board makeClearable(int width, int height, int rows, long seed) {
+		Board board = make(width, height, 0.4, seed);
+		Board result = new Board(width, height + TOP_SPACE);
+
+		// the filler rows, then the random stack on top
+		Piece block = new Piece("0 0");
+		for (int y = 0; y < rows; y++) {
+			for (int x = 1; x < width; x++) {
+				result.place(block, x, y);
+				result.commit();
+			}
+		}
+		for (int y = 0; y + rows < height && y < board.getMaxHeight(); y++) {
+			for (int x = 1; x < width; x++) {
+				if (board.getGrid(x, y) && board.getRowWidth(y) < width) {
+					result.place(block, x, y + rows);
+					result.commit();
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 Returns a vertical stick n blocks tall.
+	*/
+	public static Piece stick(int n) {
+		StringBuilder points = new StringBuilder();
+		for (int y = 0; y < n; y++) points.append("0 ").append(y).append("  ");
+		return new Piece(points.toString());
+	}
+}
@@ -0,0 +1,88 @@
+// BoardBenchmark.java
+/*
+ JMH benchmarks for the Board operations brains spend their time in:
+ place() + undo(), and dropHeight() for every piece, rotation and x.
+ Each runs on several board widths and on empty, mid-game and
+ near-full boards (see BenchBoards). clearRows() is in ClearRowsBenchmark.
+*/
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BoardBenchmark {
+	@Param({"10", "20", "64"})
+	public int width;
+
+	@Param({"0", "0.5", "0.9"})
+	public double fill;
+
+	private Board board;
+
+	// every rotation of every piece, and where each lands at each x
+	private Piece[] plays;
+	private int[] playXs;
+	private int[] playYs;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		board = BenchBoards.make(width, 20, fill, 42);
+
+		Piece[] pieces = Piece.getPieces();
+		int count = 0;
+		for (Piece root: pieces) {
+			Piece piece = root;
+			do {
+				count += width - piece.getWidth() + 1;
+				piece = piece.fastRotation();
+			} while (piece != root);
+		}
+		plays = new Piece[count];
+		playXs = new int[count];
+		playYs = new int[count];
+
+		count = 0;
+		for (Piece root: pieces) {
+			Piece piece = root;
+			do {
+				for (int x = 0; x + piece.getWidth() <= width; x++) {
+					plays[count] = piece;
+					playXs[count] = x;
+					playYs[count] = board.dropHeight(piece, x);
+					count++;
+				}
+				piece = piece.fastRotation();
+			} while (piece != root);
+		}
+	}
+
+	/**
+	 One try-and-undo, cycling through all the plays, as a brain does.
+	*/
+	@Benchmark
+	public int placeUndo() {
+		int i = next;
+		next = (i + 1 == plays.length) ? 0 : i + 1;
+		int result = board.place(plays[i], playXs[i], playYs[i]);
+		if (result == Board.PLACE_ROW_FILLED) board.clearRows();
+		board.undo();
+		return result;
+	}
+
+	/**
+	 dropHeight() for every piece, rotation and x.
+	*/
+	@Benchmark
+	public void dropHeightAll(Blackhole hole) {
+		for (int i = 0; i < plays.length; i++) {
+			hole.consume(board.dropHeight(plays[i], playXs[i]));
+		}
+	}
+}
@@ -0,0 +1,43 @@
+// BrainBenchmark.java
+/*
+ JMH benchmark for DefaultBrain.bestMove() end to end, on the same
+ boards as BoardBenchmark, cycling through the 7 pieces.
+*/
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BrainBenchmark {
+	@Param({"10", "20", "64"})
+	public int width;
+
+	@Param({"0", "0.5", "0.9"})
+	public double fill;
+
+	private Board board;
+	private Piece[] pieces;
+	private Brain brain;
+	private Brain.Move move;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		board = BenchBoards.make(width, 20, fill, 42);
+		pieces = Piece.getPieces();
+		brain = new DefaultBrain();
+		move = new Brain.Move();
+	}
+
+	@Benchmark
+	public Brain.Move bestMove() {
+		Piece piece = pieces[next];
+		next = (next + 1) % pieces.length;
+		return brain.bestMove(board, piece, 20, move);
+	}
+}
@@ -0,0 +1,41 @@
+// ClearRowsBenchmark.java
+/*
+ JMH benchmark for clearRows() of 1-4 rows under a mid-game stack:
+ place a stick that fills the rows, clear them, then undo so the
+ next call starts over. The cost includes the place() and undo(),
+ which BoardBenchmark.placeUndo measures on its own.
+*/
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClearRowsBenchmark {
+	@Param({"10", "20", "64"})
+	public int width;
+
+	@Param({"1", "2", "3", "4"})
+	public int rows;
+
+	private Board board;
+	private Piece stick;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		board = BenchBoards.makeClearable(width, 20, rows, 42);
+		stick = BenchBoards.stick(rows);
+	}
+
+	@Benchmark
+	public int clearRows() {
+		board.place(stick, 0, 0);
+		int cleared = board.clearRows();
+		board.undo();
+		return cleared;
+	}
+}
@@ -0,0 +1,34 @@
+// TetrisBench.java
+/*
+ Runs the Tetris JMH benchmarks with the GC profiler, which adds
+ the allocation rate (gc.alloc.rate.norm = bytes per operation)
+ to each result.
+
+ Usage: java TetrisBench [regexp]
+ e.g.   java TetrisBench BoardBenchmark.placeUndo
+ With no argument runs all the Tetris benchmarks.
+*/
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public class TetrisBench {
+
+	public static void main(String[] args) throws RunnerException {
+		OptionsBuilder builder = new OptionsBuilder();
+		if (args.length > 0) {
+			for (String pattern: args) builder.include(pattern);
+		}
+		else {
+			builder.include(BoardBenchmark.class.getSimpleName());
+			builder.include(ClearRowsBenchmark.class.getSimpleName());
+			builder.include(BrainBenchmark.class.getSimpleName());
+		}
+		Options options = builder
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}